@@ -0,0 +1,69 @@
+package me.formax.mod.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the overlay vertex data for all tracked heads, the step run whenever heads or claim states change,
+ * and picking the level of detail of every head, the step run each frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OverlayBuildBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  public int heads;
+
+  private long[] keys;
+  private int[] colors;
+  private int[] ranks;
+  private final OverlayGeometry geometry = new OverlayGeometry();
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    keys = new long[heads];
+    colors = new int[heads];
+    ranks = new int[heads];
+    int[] palette = {
+            OverlayGeometry.argb(0.0F, 1.0F, 0.0F, 0.3F),
+            OverlayGeometry.argb(1.0F, 1.0F, 0.0F, 0.3F),
+            OverlayGeometry.argb(1.0F, 0.0F, 0.0F, 0.3F)
+    };
+    for (int i = 0; i < heads; i++) {
+      keys[i] = BlockKeys.pack(random.nextInt(400) - 200, 60 + random.nextInt(30), random.nextInt(400) - 200);
+      ranks[i] = random.nextInt(palette.length);
+      colors[i] = palette[ranks[i]];
+    }
+    geometry.build(keys, colors, ranks, heads);
+    geometry.setCamera(0.0, 70.0, 0.0, 1.0F, 1.0F, 0.0F, 0.0F, 0.0F);
+  }
+
+  @Benchmark
+  public OverlayGeometry build() {
+    geometry.build(keys, colors, ranks, heads);
+    return geometry;
+  }
+
+  @Benchmark
+  public int planFrame() {
+    geometry.planFrame(96.0, (minX, minY, minZ, maxX, maxY, maxZ) -> true);
+    return geometry.getFrameCubeCount() + geometry.getFrameQuadCount() + geometry.getFrameMarkerCount();
+  }
+}
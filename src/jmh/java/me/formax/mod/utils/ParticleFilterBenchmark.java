@@ -0,0 +1,106 @@
+package me.formax.mod.utils;
+
+import net.minecraft.network.play.server.S2APacketParticles;
+import net.minecraft.util.EnumParticleTypes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The netty thread's work per particle packet, on a minigame-like mix where most packets are not flames.
+ * Run with the GC profiler to check the path is allocation-free:
+ * ./gradlew jmh -PjmhArgs="ParticleFilter -prof gc", gc.alloc.rate.norm of filter should be about 0 B/op.
+ * legacyNameCompare is the old name-based check for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParticleFilterBenchmark {
+
+  private static final int PACKETS = 1024;
+
+  // Non-flame particles common on minigame servers
+  private static final EnumParticleTypes[] OTHER_TYPES = {
+          EnumParticleTypes.REDSTONE, EnumParticleTypes.SPELL_MOB, EnumParticleTypes.FIREWORKS_SPARK,
+          EnumParticleTypes.VILLAGER_HAPPY, EnumParticleTypes.CLOUD, EnumParticleTypes.CRIT
+  };
+
+  @Param({"100"})
+  public int heads;
+
+  // Percentage of packets that are flame or lava particles
+  @Param({"10"})
+  public int flamePercent;
+
+  private final HeadSpatialIndex index = new HeadSpatialIndex();
+  private final FlameParticleFilter filter = new FlameParticleFilter(index);
+  private final S2APacketParticles[] packets = new S2APacketParticles[PACKETS];
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    int[][] headPositions = new int[heads][];
+    for (int i = 0; i < heads; i++) {
+      headPositions[i] = new int[] {random.nextInt(100) - 50, 60 + random.nextInt(10), random.nextInt(100) - 50};
+      index.add(BlockKeys.pack(headPositions[i][0], headPositions[i][1], headPositions[i][2]));
+    }
+    index.publish();
+
+    for (int i = 0; i < PACKETS; i++) {
+      EnumParticleTypes type;
+      float x;
+      float y;
+      float z;
+      if (random.nextInt(100) < flamePercent) {
+        // Flames on a head, the rest of the map uses them for decoration too
+        type = random.nextBoolean() ? EnumParticleTypes.FLAME : EnumParticleTypes.LAVA;
+        int[] head = random.nextBoolean() ? headPositions[random.nextInt(heads)] : new int[] {500, 70, 500};
+        x = head[0] + 0.5F;
+        y = head[1] + 0.5F;
+        z = head[2] + 0.5F;
+      } else {
+        type = OTHER_TYPES[random.nextInt(OTHER_TYPES.length)];
+        x = random.nextFloat() * 200 - 100;
+        y = 60 + random.nextFloat() * 20;
+        z = random.nextFloat() * 200 - 100;
+      }
+      packets[i] = new S2APacketParticles(type, false, x, y, z, 0.0F, 0.0F, 0.0F, 0.0F, 1);
+    }
+  }
+
+  private S2APacketParticles nextPacket() {
+    next = (next + 1) & (PACKETS - 1);
+    return packets[next];
+  }
+
+  @Benchmark
+  public long filter() {
+    S2APacketParticles packet = nextPacket();
+    return filter.match(packet.getParticleType(), packet.getXCoordinate(), packet.getYCoordinate(), packet.getZCoordinate());
+  }
+
+  @Benchmark
+  public long legacyNameCompare() {
+    S2APacketParticles packet = nextPacket();
+    String particleName = packet.getParticleType().getParticleName();
+    if (particleName.equals("flame") || particleName.equals("lava")) {
+      return index.findHead(packet.getXCoordinate(), packet.getYCoordinate(), packet.getZCoordinate());
+    }
+    return BlockKeys.NONE;
+  }
+}
@@ -0,0 +1,91 @@
+package me.formax.mod.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching a flame particle to the ghost head it belongs to, as done on the netty thread:
+ * the old linear distance loop over all heads against the spatial index lookup.
+ * Half of the particles hit a head, the other half land somewhere else.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParticleMatchBenchmark {
+
+  private static final int PARTICLES = 1024;
+
+  @Param({"10", "100", "500"})
+  public int heads;
+
+  private int[][] headPositions;
+  private final HeadSpatialIndex index = new HeadSpatialIndex();
+  private final double[][] particles = new double[PARTICLES][3];
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    headPositions = new int[heads][];
+    for (int i = 0; i < heads; i++) {
+      headPositions[i] = new int[] {random.nextInt(200) - 100, 60 + random.nextInt(20), random.nextInt(200) - 100};
+      index.add(BlockKeys.pack(headPositions[i][0], headPositions[i][1], headPositions[i][2]));
+    }
+    index.publish();
+
+    for (int i = 0; i < PARTICLES; i++) {
+      if (i % 2 == 0) {
+        int[] head = headPositions[random.nextInt(heads)];
+        particles[i][0] = head[0] + 0.3 + random.nextDouble() * 0.4;
+        particles[i][1] = head[1] + 0.3 + random.nextDouble() * 0.4;
+        particles[i][2] = head[2] + 0.3 + random.nextDouble() * 0.4;
+      } else {
+        particles[i][0] = random.nextDouble() * 200 - 100;
+        particles[i][1] = 60 + random.nextDouble() * 20;
+        particles[i][2] = random.nextDouble() * 200 - 100;
+      }
+    }
+  }
+
+  private double[] nextParticle() {
+    next = (next + 1) & (PARTICLES - 1);
+    return particles[next];
+  }
+
+  @Benchmark
+  public long legacyLinearScan() {
+    double[] p = nextParticle();
+    for (int[] ghostPos : headPositions) {
+      double distance = Math.sqrt(
+              Math.pow(ghostPos[0] + 0.5 - p[0], 2) +
+                      Math.pow(ghostPos[1] + 0.5 - p[1], 2) +
+                      Math.pow(ghostPos[2] + 0.5 - p[2], 2)
+      );
+      if (distance <= 0.5) {
+        return BlockKeys.pack(ghostPos[0], ghostPos[1], ghostPos[2]);
+      }
+    }
+    return BlockKeys.NONE;
+  }
+
+  @Benchmark
+  public long spatialIndex() {
+    double[] p = nextParticle();
+    return index.findHead(p[0], p[1], p[2]);
+  }
+}
@@ -0,0 +1,72 @@
+package me.formax.mod.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route planning through unclaimed ghost heads: building a settled route for a whole map, and
+ * bringing a settled route up to date after one head was claimed and another one discovered.
+ * Heads are spread randomly over a 400 x 400 block area.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RouteBenchmark {
+
+  @Param({"50", "200", "500"})
+  public int heads;
+
+  private long[] keys;
+  private final RoutePlanner settled = new RoutePlanner();
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    keys = new long[heads];
+    for (int i = 0; i < heads; i++) {
+      keys[i] = BlockKeys.pack(random.nextInt(400) - 200, 60 + random.nextInt(20), random.nextInt(400) - 200);
+    }
+    settled.setStart(0.0, 64.0, 0.0);
+    for (long key : keys) {
+      settled.add(key);
+    }
+    settled.improve(Long.MAX_VALUE);
+  }
+
+  @Benchmark
+  public double buildRoute() {
+    RoutePlanner planner = new RoutePlanner();
+    planner.setStart(0.0, 64.0, 0.0);
+    for (long key : keys) {
+      planner.add(key);
+    }
+    planner.improve(Long.MAX_VALUE);
+    return planner.getLength();
+  }
+
+  @Benchmark
+  public double updateRoute() {
+    // The claimed head comes back as the discovered one, so the route keeps its size
+    long key = keys[next++ % heads];
+    settled.remove(key);
+    settled.add(key);
+    settled.improve(Long.MAX_VALUE);
+    return settled.getLength();
+  }
+}
@@ -0,0 +1,145 @@
+package me.formax.mod.utils;
+
+import net.minecraft.profiler.Profiler;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.tileentity.TileEntityChest;
+import net.minecraft.tileentity.TileEntitySkull;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldProviderSurface;
+import net.minecraft.world.WorldSettings;
+import net.minecraft.world.WorldType;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.IChunkProvider;
+import net.minecraft.world.storage.WorldInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Skull discovery around the player: the old 65x65x65 block poll against the chunk tile entity scan.
+ * The stand-in world is a set of skull positions for the poll, and a world whose chunks only have
+ * their tile entity maps filled in for SkullScanner.scanChunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+  private static final int SCAN_RADIUS = 32;
+
+  @Param({"20", "200"})
+  public int skulls;
+
+  // Other tile entities per chunk (chests, signs, ...) the scan has to skip
+  @Param({"4"})
+  public int otherPerChunk;
+
+  private final BlockPos center = new BlockPos(0, 64, 0);
+  private final Set<BlockPos> skullBlocks = new HashSet<>();
+  private ChunkWorld world;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    world = new ChunkWorld();
+    for (int chunkX = (center.getX() - SCAN_RADIUS) >> 4; chunkX <= (center.getX() + SCAN_RADIUS) >> 4; chunkX++) {
+      for (int chunkZ = (center.getZ() - SCAN_RADIUS) >> 4; chunkZ <= (center.getZ() + SCAN_RADIUS) >> 4; chunkZ++) {
+        world.load(chunkX, chunkZ);
+        for (int i = 0; i < otherPerChunk; i++) {
+          world.place(new TileEntityChest(), new BlockPos((chunkX << 4) + random.nextInt(16),
+                  center.getY() + random.nextInt(65) - 32, (chunkZ << 4) + random.nextInt(16)));
+        }
+      }
+    }
+
+    for (int i = 0; i < skulls; i++) {
+      BlockPos pos = center.add(random.nextInt(65) - 32, random.nextInt(65) - 32, random.nextInt(65) - 32);
+      skullBlocks.add(pos);
+      world.place(new TileEntitySkull(), pos);
+    }
+  }
+
+  @Benchmark
+  public int legacyBlockPoll() {
+    int found = 0;
+    for (int x = -SCAN_RADIUS; x <= SCAN_RADIUS; x++) {
+      for (int y = -SCAN_RADIUS; y <= SCAN_RADIUS; y++) {
+        for (int z = -SCAN_RADIUS; z <= SCAN_RADIUS; z++) {
+          BlockPos checkPos = center.add(x, y, z);
+          if (skullBlocks.contains(checkPos)) {
+            found++;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  @Benchmark
+  public int tileEntityScan(Blackhole blackhole) {
+    int found = 0;
+    for (int chunkX = (center.getX() - SCAN_RADIUS) >> 4; chunkX <= (center.getX() + SCAN_RADIUS) >> 4; chunkX++) {
+      for (int chunkZ = (center.getZ() - SCAN_RADIUS) >> 4; chunkZ <= (center.getZ() + SCAN_RADIUS) >> 4; chunkZ++) {
+        found += SkullScanner.scanChunk(world, chunkX, chunkZ, blackhole::consume);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * A client-side world without a chunk provider, chunks are handed out from a map.
+   * Tile entities go straight into their chunk's tile entity map, the blocks underneath stay air.
+   */
+  private static class ChunkWorld extends World {
+
+    private final Map<Long, Chunk> chunks = new HashMap<>();
+
+    ChunkWorld() {
+      super(null, new WorldInfo(new WorldSettings(0L, WorldSettings.GameType.SURVIVAL, false, false,
+              WorldType.DEFAULT), "scan"), new WorldProviderSurface(), new Profiler(), true);
+    }
+
+    void load(int chunkX, int chunkZ) {
+      chunks.put(ChunkScanScheduler.chunkKey(chunkX, chunkZ), new Chunk(this, chunkX, chunkZ));
+    }
+
+    void place(TileEntity te, BlockPos pos) {
+      te.setPos(pos);
+      getChunkFromChunkCoords(pos.getX() >> 4, pos.getZ() >> 4).getTileEntityMap().put(pos, te);
+    }
+
+    @Override
+    public Chunk getChunkFromChunkCoords(int chunkX, int chunkZ) {
+      return chunks.get(ChunkScanScheduler.chunkKey(chunkX, chunkZ));
+    }
+
+    @Override
+    protected IChunkProvider createChunkProvider() {
+      return null;
+    }
+
+    @Override
+    protected int getRenderDistanceChunks() {
+      return 0;
+    }
+  }
+}
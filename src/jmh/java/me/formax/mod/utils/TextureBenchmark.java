@@ -0,0 +1,134 @@
+package me.formax.mod.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Texture classification: the old per-pixel getRGB comparison against every reference,
+ * the fingerprint index lookup with exact and tolerant pixel comparison, reading the compared
+ * region through getRGB and straight from the raster, and loading a skin from the local skin directory.
+ * Reference skins and the candidate are random 64x64 fixtures written to a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextureBenchmark {
+
+  private static final String CANDIDATE_ID = "ffcandidate";
+
+  @Param({"2", "100", "500"})
+  public int references;
+
+  private BufferedImage[] referenceImages;
+  private BufferedImage candidate;
+  private final GhostFingerprintIndex index = new GhostFingerprintIndex(0);
+  private final GhostFingerprintIndex tolerantIndex = new GhostFingerprintIndex();
+  private File skinsDir;
+  private GhostTextureMatcher matcher;
+
+  @Setup
+  public void setup() throws IOException {
+    Random random = new Random(42);
+    referenceImages = new BufferedImage[references];
+    for (int i = 0; i < references; i++) {
+      referenceImages[i] = randomSkin(random);
+      index.add("ref" + i, GhostFingerprintIndex.extractRegion(referenceImages[i]));
+      tolerantIndex.add("ref" + i, GhostFingerprintIndex.extractRegion(referenceImages[i]));
+    }
+
+    // A non-ghost candidate, the common case on event maps
+    candidate = randomSkin(random);
+
+    skinsDir = Files.createTempDirectory("ghosthunt-skins").toFile();
+    File dir = new File(skinsDir, CANDIDATE_ID.substring(0, 2));
+    dir.mkdirs();
+    ImageIO.write(candidate, "png", new File(dir, CANDIDATE_ID));
+    matcher = new GhostTextureMatcher(skinsDir, java.util.Collections.emptyList(), null, new VerdictCache(16),
+            new MetricsRegistry().histogram("texture_decode", "us"));
+  }
+
+  @TearDown
+  public void tearDown() {
+    File dir = new File(skinsDir, CANDIDATE_ID.substring(0, 2));
+    new File(dir, CANDIDATE_ID).delete();
+    dir.delete();
+    skinsDir.delete();
+  }
+
+  private static BufferedImage randomSkin(Random random) {
+    BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < 64; y++) {
+      for (int x = 0; x < 64; x++) {
+        image.setRGB(x, y, 0xFF000000 | random.nextInt(0x1000000));
+      }
+    }
+    return image;
+  }
+
+  @Benchmark
+  public boolean legacyGetRgbCompare() {
+    for (BufferedImage reference : referenceImages) {
+      int matchingPixels = 0;
+      for (int y = 0; y < GhostFingerprintIndex.REGION_HEIGHT; y++) {
+        for (int x = 0; x < GhostFingerprintIndex.REGION_WIDTH; x++) {
+          int rgb1 = candidate.getRGB(GhostFingerprintIndex.REGION_X + x, GhostFingerprintIndex.REGION_Y + y);
+          int rgb2 = reference.getRGB(GhostFingerprintIndex.REGION_X + x, GhostFingerprintIndex.REGION_Y + y);
+          if (rgb1 == rgb2) {
+            matchingPixels++;
+          }
+        }
+      }
+      if ((double) matchingPixels / GhostFingerprintIndex.REGION_PIXELS * 100.0 >= 95.0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Benchmark
+  public String fingerprintLookup() {
+    return index.find(GhostFingerprintIndex.extractRegion(candidate));
+  }
+
+  @Benchmark
+  public String tolerantLookup() {
+    return tolerantIndex.find(GhostFingerprintIndex.extractRegion(candidate));
+  }
+
+  @Benchmark
+  public int[] legacyGetRgbRegion() {
+    return candidate.getRGB(GhostFingerprintIndex.REGION_X, GhostFingerprintIndex.REGION_Y,
+            GhostFingerprintIndex.REGION_WIDTH, GhostFingerprintIndex.REGION_HEIGHT, null, 0, GhostFingerprintIndex.REGION_WIDTH);
+  }
+
+  @Benchmark
+  public int[] rasterRegion() {
+    return GhostFingerprintIndex.extractRegion(candidate);
+  }
+
+  @Benchmark
+  public BufferedImage loadTexture() {
+    return matcher.loadLocalTexture(CANDIDATE_ID, null);
+  }
+}
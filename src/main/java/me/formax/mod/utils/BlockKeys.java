@@ -0,0 +1,57 @@
+package me.formax.mod.utils;
+
+/**
+ * Packs block coordinates into a single long using the same layout as BlockPos.toLong().
+ * Lets the tracking structures key positions without allocating BlockPos objects.
+ */
+public final class BlockKeys {
+
+  private static final int X_BITS = 26;
+  private static final int Z_BITS = 26;
+  private static final int Y_BITS = 12;
+  private static final int Y_SHIFT = Z_BITS;
+  private static final int X_SHIFT = Y_SHIFT + Y_BITS;
+  private static final long X_MASK = (1L << X_BITS) - 1L;
+  private static final long Y_MASK = (1L << Y_BITS) - 1L;
+  private static final long Z_MASK = (1L << Z_BITS) - 1L;
+
+  // Never produced by a position inside the world border, used to mark empty slots and misses
+  public static final long NONE = Long.MIN_VALUE;
+
+  private BlockKeys() {
+  }
+
+  /**
+   * Packs block coordinates into a key.
+   * @return The packed key, equal to new BlockPos(x, y, z).toLong()
+   */
+  public static long pack(int x, int y, int z) {
+    return (((long) x & X_MASK) << X_SHIFT) | (((long) y & Y_MASK) << Y_SHIFT) | ((long) z & Z_MASK);
+  }
+
+  public static int x(long key) {
+    return (int) ((key << (64 - X_SHIFT - X_BITS)) >> (64 - X_BITS));
+  }
+
+  public static int y(long key) {
+    return (int) ((key << (64 - Y_SHIFT - Y_BITS)) >> (64 - Y_BITS));
+  }
+
+  public static int z(long key) {
+    return (int) ((key << (64 - Z_BITS)) >> (64 - Z_BITS));
+  }
+
+  /**
+   * Spreads the bits of a key for use as a hash table index.
+   * @param key The packed key
+   * @return A well mixed 32 bit hash
+   */
+  public static int hash(long key) {
+    // Murmur3 finalizer, the X coordinate lives in the high bits and must reach the low ones
+    long h = key ^ (key >>> 33);
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    return (int) (h ^ (h >>> 33));
+  }
+}
@@ -0,0 +1,164 @@
+package me.formax.mod.utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the events of a capture file written by CaptureWriter, one at a time.
+ * The current event is exposed through public fields that are overwritten by the next call to next,
+ * so reading a capture allocates nothing per event except for skull texture lists.
+ */
+public class CaptureReader implements Closeable {
+
+  private final DataInputStream in;
+  private final long startTime;
+
+  // Texture property values by number, index 0 unused
+  private final List<String> strings = new ArrayList<>();
+
+  // Current event, only the fields of its type are meaningful
+  public byte type;
+  public long timeMicros;
+  public double x;
+  public double y;
+  public double z;
+  public int particleType;
+  public int chunkX;
+  public int chunkZ;
+  public long pos;
+  public boolean flag;
+  public long[] positions = new long[0];
+  public List<List<String>> properties = new ArrayList<>();
+
+  /**
+   * Opens a capture file and reads its header.
+   * @param file The capture file
+   * @throws IOException If the file cannot be read or is not a capture file
+   */
+  public CaptureReader(File file) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    if (in.readInt() != CaptureWriter.MAGIC) {
+      in.close();
+      throw new IOException("Not a capture file: " + file);
+    }
+    int version = in.readInt();
+    if (version != CaptureWriter.VERSION) {
+      in.close();
+      throw new IOException("Unsupported capture version " + version);
+    }
+    startTime = in.readLong();
+    strings.add(null);
+  }
+
+  /**
+   * @return Wall clock time in milliseconds when the capture started
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Reads the next event into the public fields.
+   * A capture cut short by a crash simply ends at the last complete event.
+   * @return false at the end of the capture
+   * @throws IOException If the file cannot be read or is corrupt
+   */
+  public boolean next() throws IOException {
+    int read = in.read();
+    if (read < 0) {
+      return false;
+    }
+
+    try {
+      type = (byte) read;
+      timeMicros += readVarLong();
+      switch (type) {
+        case CaptureWriter.EVENT_TICK:
+          x = in.readDouble();
+          y = in.readDouble();
+          z = in.readDouble();
+          break;
+        case CaptureWriter.EVENT_PARTICLE:
+          particleType = in.readUnsignedByte();
+          x = in.readFloat();
+          y = in.readFloat();
+          z = in.readFloat();
+          break;
+        case CaptureWriter.EVENT_CHUNK:
+          chunkX = in.readInt();
+          chunkZ = in.readInt();
+          flag = in.readByte() != 0;
+          int count = (int) readVarLong();
+          positions = new long[count];
+          properties = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            positions[i] = in.readLong();
+            properties.add(readProperties());
+          }
+          break;
+        case CaptureWriter.EVENT_BLOCK:
+        case CaptureWriter.EVENT_VERDICT:
+          pos = in.readLong();
+          flag = in.readByte() != 0;
+          break;
+        case CaptureWriter.EVENT_SKULL:
+          pos = in.readLong();
+          properties = new ArrayList<>(1);
+          properties.add(readProperties());
+          break;
+        case CaptureWriter.EVENT_CLICK:
+          pos = in.readLong();
+          break;
+        default:
+          throw new IOException("Unknown capture event type " + type);
+      }
+    } catch (EOFException e) {
+      // Torn last event
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private List<String> readProperties() throws IOException {
+    int count = (int) readVarLong();
+    List<String> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int number = (int) readVarLong();
+      if (number == 0) {
+        byte[] bytes = new byte[(int) readVarLong()];
+        in.readFully(bytes);
+        strings.add(new String(bytes, StandardCharsets.UTF_8));
+        number = strings.size() - 1;
+      } else if (number >= strings.size()) {
+        throw new IOException("Unknown texture property reference " + number);
+      }
+      values.add(strings.get(number));
+    }
+    return values;
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,353 @@
+package me.formax.mod.utils;
+
+import net.minecraft.util.EnumParticleTypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Replays a capture file through the detection, flame tracking and claim logic without a game client.
+ * Drives the same HeadTracker and particle filter as HeadTextureListener, with a small model of the
+ * captured world in place of the client world. Time comes from the capture, so the results do not
+ * depend on replay speed and two runs over the same capture make the same decisions.
+ * <p>
+ * Skull textures are classified with the real matcher when a skins directory is given, and the
+ * verdicts are compared with the recorded ones. Without skins the recorded verdicts are used.
+ * Texture work is done synchronously, as if the texture workers were never busy, and its verdicts
+ * are applied on the next tick. The ghost heads of a database given with --database are restored
+ * before the first event, changes are written to a temporary copy.
+ * <p>
+ * Run with ./gradlew replay -PreplayArgs="capture.ghc [--realtime] [--skins dir] [--references file] [--database file]"
+ */
+public class CaptureReplayer {
+
+  private static final EnumParticleTypes[] PARTICLE_TYPES = EnumParticleTypes.values();
+
+  // Capture clock in milliseconds, stands in for System.currentTimeMillis()
+  private long now = 0;
+
+  // Tick events replayed so far, stands in for the client tick counter
+  private long ticks = 0;
+
+  // Skulls of the captured world: packed position -> texture property values, empty until the tile entity arrives
+  private final Map<Long, List<String>> skulls = new HashMap<>();
+
+  // Loaded chunks of the captured world by ChunkScanScheduler.chunkKey
+  private final LongHashSet loadedChunks = new LongHashSet();
+
+  // Saved ghost heads, a temporary copy of the database given on the command line or an empty one
+  private final GhostDatabase database = new GhostDatabase();
+
+  // The client's tracking, driven by the captured events, chat messages are dropped
+  private final HeadTracker tracker = new HeadTracker(new CapturedSkulls(), new SynchronousClassifier(), database,
+          () -> now, message -> { });
+  private final FlameParticleFilter flameFilter = new FlameParticleFilter(tracker.getGhostHeadIndex());
+
+  // Verdicts recorded during the capture by packed position, read before the replay starts
+  private final Map<Long, Boolean> recordedVerdicts = new HashMap<>();
+
+  // Classifies textures when skins are available, null to use the recorded verdicts
+  private final GhostTextureMatcher matcher;
+
+  // Database file whose ghost heads are restored, null to start without saved heads
+  private final File databaseFile;
+
+  private final MetricsRegistry metrics = new MetricsRegistry();
+  private final MetricsRegistry.Counter events = metrics.counter("events");
+  private final MetricsRegistry.Counter particlesMatched = metrics.counter("particles_matched");
+  private final MetricsRegistry.Counter verdictMismatches = metrics.counter("verdict_mismatches");
+  private final MetricsRegistry.Histogram particleTime = metrics.histogram("particle", "ns");
+  private final MetricsRegistry.Histogram tickTime = metrics.histogram("tick", "us");
+  private final MetricsRegistry.Histogram chunkTime = metrics.histogram("chunk", "us");
+  private final MetricsRegistry.Histogram classifyTime = metrics.histogram("classify", "us");
+
+  /**
+   * @param matcher Classifies skull textures, or null to use the verdicts recorded in the capture
+   * @param databaseFile Ghost database of the captured world, or null to start without saved heads
+   */
+  public CaptureReplayer(GhostTextureMatcher matcher, File databaseFile) {
+    this.matcher = matcher;
+    this.databaseFile = databaseFile;
+  }
+
+  public static void main(String[] args) throws IOException {
+    File capture = null;
+    File skinsDir = null;
+    File referencesFile = null;
+    File databaseFile = null;
+    boolean realtime = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--realtime")) {
+        realtime = true;
+      } else if (args[i].equals("--skins") && i + 1 < args.length) {
+        skinsDir = new File(args[++i]);
+      } else if (args[i].equals("--references") && i + 1 < args.length) {
+        referencesFile = new File(args[++i]);
+      } else if (args[i].equals("--database") && i + 1 < args.length) {
+        databaseFile = new File(args[++i]);
+      } else {
+        capture = new File(args[i]);
+      }
+    }
+    if (capture == null) {
+      System.err.println("Usage: CaptureReplayer <capture file> [--realtime] [--skins dir] [--references file]"
+              + " [--database file]");
+      System.exit(2);
+    }
+
+    GhostTextureMatcher matcher = null;
+    if (skinsDir != null) {
+      matcher = new GhostTextureMatcher(skinsDir, GhostTextureMatcher.GHOST_TEXTURE_IDS, referencesFile,
+              new VerdictCache(4096), new MetricsRegistry().histogram("texture_decode", "us"));
+    }
+
+    CaptureReplayer replayer = new CaptureReplayer(matcher, databaseFile);
+    for (String line : replayer.replay(capture, realtime)) {
+      // Chat color codes are meaningless on a console
+      System.out.println(line.replaceAll("§.", ""));
+    }
+  }
+
+  /**
+   * Replays a capture file.
+   * @param file The capture file
+   * @param realtime Whether to keep the original timing between events instead of running at full speed
+   * @return Report lines with throughput, per-stage latency and the final head counts
+   * @throws IOException If the capture cannot be read
+   */
+  public List<String> replay(File file, boolean realtime) throws IOException {
+    readRecordedVerdicts(file);
+    openDatabase();
+
+    long start = System.nanoTime();
+    long lastMicros = 0;
+    metrics.sampleRates(start);
+    try (CaptureReader reader = new CaptureReader(file)) {
+      now = reader.getStartTime();
+      while (reader.next()) {
+        events.increment();
+        now = reader.getStartTime() + reader.timeMicros / 1000;
+        lastMicros = reader.timeMicros;
+        if (realtime) {
+          sleepUntil(start + reader.timeMicros * 1000);
+        }
+        apply(reader);
+      }
+    }
+    long end = System.nanoTime();
+    double seconds = (end - start) / 1e9;
+    database.close();
+
+    // Counter rates over the whole replay are its throughput per event kind
+    metrics.sampleRates(end);
+
+    List<String> report = new ArrayList<>();
+    report.add("§6Replayed " + events.get() + " events covering " + lastMicros / 1000000 + " s in "
+            + String.format(Locale.ROOT, "%.2f", seconds) + " s ("
+            + String.format(Locale.ROOT, "%.0f", events.get() / Math.max(seconds, 1e-9)) + " events/s)");
+    report.addAll(metrics.report());
+    GhostHeadTable heads = tracker.getHeads();
+    report.add("§eHeads tracked: §f" + heads.size() + " §eghosts: §f" + heads.getGhostCount()
+            + " §eclaimed: §f" + heads.getClaimedCount() + " §eunclaimed: §f" + heads.getUnclaimedCount());
+    return report;
+  }
+
+  private void apply(CaptureReader event) {
+    switch (event.type) {
+      case CaptureWriter.EVENT_TICK:
+        long tickStart = System.nanoTime();
+        ticks++;
+        tracker.tick(ticks, event.x, event.y, event.z);
+        tracker.processCheckQueue(Long.MAX_VALUE);
+        tickTime.recordSince(tickStart);
+        break;
+      case CaptureWriter.EVENT_PARTICLE:
+        long particleStart = System.nanoTime();
+        if (event.particleType < PARTICLE_TYPES.length) {
+          long ghostKey = flameFilter.match(PARTICLE_TYPES[event.particleType], event.x, event.y, event.z);
+          if (ghostKey != BlockKeys.NONE) {
+            particlesMatched.increment();
+            tracker.getFlameEvents().offer(ghostKey);
+          }
+        }
+        particleTime.record(System.nanoTime() - particleStart);
+        break;
+      case CaptureWriter.EVENT_CHUNK:
+        long chunkStart = System.nanoTime();
+        chunk(event.chunkX, event.chunkZ, event.flag, event.positions, event.properties);
+        chunkTime.recordSince(chunkStart);
+        break;
+      case CaptureWriter.EVENT_BLOCK:
+        if (event.flag) {
+          if (!skulls.containsKey(event.pos)) {
+            skulls.put(event.pos, Collections.emptyList());
+          }
+        } else {
+          skulls.remove(event.pos);
+        }
+        tracker.blockChanged(event.pos, event.flag);
+        break;
+      case CaptureWriter.EVENT_SKULL:
+        skulls.put(event.pos, event.properties.get(0));
+        tracker.skullUpdated(event.pos, event.properties.get(0));
+        break;
+      case CaptureWriter.EVENT_CLICK:
+        // The client only reports clicks on skull blocks
+        tracker.click(event.pos, false);
+        break;
+      default:
+        // Verdicts were read up front
+        break;
+    }
+  }
+
+  /**
+   * A chunk load replaces the skulls of the chunk, an unload drops them.
+   */
+  private void chunk(int chunkX, int chunkZ, boolean loaded, long[] positions, List<List<String>> properties) {
+    Iterator<Long> it = skulls.keySet().iterator();
+    while (it.hasNext()) {
+      long key = it.next();
+      if (BlockKeys.x(key) >> 4 == chunkX && BlockKeys.z(key) >> 4 == chunkZ) {
+        it.remove();
+      }
+    }
+    for (int i = 0; i < positions.length; i++) {
+      skulls.put(positions[i], properties.get(i));
+    }
+    if (loaded) {
+      loadedChunks.add(ChunkScanScheduler.chunkKey(chunkX, chunkZ));
+    } else {
+      loadedChunks.remove(ChunkScanScheduler.chunkKey(chunkX, chunkZ));
+    }
+
+    // Evict heads that are no longer in the chunk, then queue its skulls
+    tracker.chunkChanged(chunkX, chunkZ, !loaded);
+    if (loaded) {
+      for (long key : positions) {
+        tracker.queueHead(key);
+      }
+    }
+  }
+
+  /**
+   * Opens a temporary copy of the database and restores its ghost heads, so the replay does not change
+   * the original and the restore happens at the same point in every run.
+   */
+  private void openDatabase() throws IOException {
+    File copy = File.createTempFile("ghosthunt-replay", ".log");
+    copy.deleteOnExit();
+    if (databaseFile != null) {
+      Files.copy(databaseFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    database.open(copy);
+    while (!tracker.restoreLoaded()) {
+      sleepUntil(System.nanoTime() + 1000000);
+    }
+  }
+
+  /**
+   * Classifies a skull the moment it is submitted: with the matcher when skins are available,
+   * otherwise with the verdict recorded in the capture. Verdicts wait for the next tick like the
+   * texture workers' do.
+   */
+  private TextureClassifier.Verdict classify(long key, List<String> propertyValues, boolean claimIfGhost) {
+    Boolean recorded = recordedVerdicts.get(key);
+    Boolean ghost;
+    if (matcher != null) {
+      long start = System.nanoTime();
+      ghost = matcher.isGhost(propertyValues, null);
+      classifyTime.recordSince(start);
+      if (ghost != null && recorded != null && !recorded.equals(ghost)) {
+        verdictMismatches.increment();
+      }
+    } else {
+      ghost = recorded != null && recorded;
+    }
+    return new TextureClassifier.Verdict(key, ghost, claimIfGhost, null);
+  }
+
+  private void readRecordedVerdicts(File file) throws IOException {
+    try (CaptureReader reader = new CaptureReader(file)) {
+      while (reader.next()) {
+        if (reader.type == CaptureWriter.EVENT_VERDICT) {
+          recordedVerdicts.put(reader.pos, reader.flag);
+        }
+      }
+    }
+  }
+
+  /**
+   * The captured world as the tracker sees it.
+   */
+  private class CapturedSkulls implements HeadTracker.SkullSource {
+    @Override
+    public List<String> skullAt(long key) {
+      return skulls.get(key);
+    }
+
+    @Override
+    public boolean isChunkLoaded(int chunkX, int chunkZ) {
+      return loadedChunks.contains(ChunkScanScheduler.chunkKey(chunkX, chunkZ));
+    }
+  }
+
+  /**
+   * Texture workers that are never busy.
+   */
+  private class SynchronousClassifier implements HeadTracker.Classifier {
+    private final Queue<TextureClassifier.Verdict> verdicts = new ArrayDeque<>();
+
+    @Override
+    public boolean submit(long pos, List<String> propertyValues, boolean verbose, boolean claimIfGhost) {
+      verdicts.add(classify(pos, propertyValues, claimIfGhost));
+      return true;
+    }
+
+    @Override
+    public boolean isBatchRunning() {
+      return false;
+    }
+
+    @Override
+    public boolean submitBatch(long[] positions, List<List<String>> propertyValues) {
+      for (int i = 0; i < positions.length; i++) {
+        verdicts.add(classify(positions[i], propertyValues.get(i), false));
+      }
+      return true;
+    }
+
+    @Override
+    public TextureClassifier.Verdict poll() {
+      return verdicts.poll();
+    }
+
+    @Override
+    public int getReferenceVersion() {
+      return matcher != null ? matcher.getReferenceVersion() : 0;
+    }
+  }
+
+  private static void sleepUntil(long nanos) {
+    long wait;
+    while ((wait = nanos - System.nanoTime()) > 0) {
+      try {
+        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,308 @@
+package me.formax.mod.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records what the detection pipeline sees to a compact binary capture file, so a problem from
+ * a live server can be replayed offline with CaptureReplayer.
+ * <p>
+ * Events are recorded after vanilla applied the packet, in the form the tracker consumes them:
+ * player ticks, particles, chunk loads with the skulls they contain, block changes, skull updates,
+ * clicks and texture verdicts. Each event starts with its type and the microseconds since the
+ * previous event as a varint. Texture property values repeat across heads and are written once,
+ * later occurrences refer to them by number.
+ * <p>
+ * Recording methods may be called from the client and the netty thread. They only append to a
+ * memory buffer, full buffers are written to disk on a background thread.
+ */
+public class CaptureWriter {
+
+  // File header, "GHCP" followed by the format version and the capture start time
+  static final int MAGIC = 0x47484350;
+  static final int VERSION = 1;
+
+  // Event types
+  static final byte EVENT_TICK = 1;
+  static final byte EVENT_PARTICLE = 2;
+  static final byte EVENT_CHUNK = 3;
+  static final byte EVENT_BLOCK = 4;
+  static final byte EVENT_SKULL = 5;
+  static final byte EVENT_CLICK = 6;
+  static final byte EVENT_VERDICT = 7;
+
+  // Size of the memory buffers handed to the background thread
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // Room an event needs besides its texture properties
+  private static final int MAX_FIXED_EVENT_SIZE = 64;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "GhostHunt Capture");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final File file;
+  private final FileChannel channel;
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+  // Texture property values written so far -> their number, starting at 1
+  private final Map<String, Integer> strings = new HashMap<>();
+
+  private final long startNanos = System.nanoTime();
+  private long lastEventMicros = 0;
+  private long eventCount = 0;
+  private long bytesWritten = 0;
+  private volatile IOException failure = null;
+  private boolean closed = false;
+
+  /**
+   * Creates the capture file and writes its header.
+   * @param file The capture file, replaced if it exists
+   * @throws IOException If the file cannot be created
+   */
+  public CaptureWriter(File file) throws IOException {
+    this.file = file;
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    channel = new FileOutputStream(file).getChannel();
+
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putLong(System.currentTimeMillis());
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public synchronized long getEventCount() {
+    return eventCount;
+  }
+
+  /**
+   * @return Bytes recorded so far, including those not written to disk yet
+   */
+  public synchronized long getSize() {
+    return bytesWritten + buffer.position();
+  }
+
+  /**
+   * Records the end of a client tick with the player position.
+   */
+  public synchronized void tick(double x, double y, double z) {
+    if (begin(EVENT_TICK, 0)) {
+      buffer.putDouble(x);
+      buffer.putDouble(y);
+      buffer.putDouble(z);
+    }
+  }
+
+  /**
+   * Records a particle packet. Coordinates are sent as floats, so nothing is lost.
+   * @param type The ordinal of the particle type
+   */
+  public synchronized void particle(int type, double x, double y, double z) {
+    if (begin(EVENT_PARTICLE, 0)) {
+      buffer.put((byte) type);
+      buffer.putFloat((float) x);
+      buffer.putFloat((float) y);
+      buffer.putFloat((float) z);
+    }
+  }
+
+  /**
+   * Records a chunk that was loaded or unloaded, with the skulls of a loaded chunk.
+   * @param positions The packed positions of the skulls in the chunk
+   * @param properties The texture property values of each skull, in the same order
+   */
+  public synchronized void chunk(int chunkX, int chunkZ, boolean loaded, long[] positions, List<List<String>> properties) {
+    if (begin(EVENT_CHUNK, chunkPropertiesSize(properties) + positions.length * 10)) {
+      buffer.putInt(chunkX);
+      buffer.putInt(chunkZ);
+      buffer.put((byte) (loaded ? 1 : 0));
+      putVarLong(positions.length);
+      for (int i = 0; i < positions.length; i++) {
+        buffer.putLong(positions[i]);
+        putProperties(properties.get(i));
+      }
+    }
+  }
+
+  /**
+   * Records a block change.
+   * @param skull Whether the new block is a skull
+   */
+  public synchronized void block(long pos, boolean skull) {
+    if (begin(EVENT_BLOCK, 0)) {
+      buffer.putLong(pos);
+      buffer.put((byte) (skull ? 1 : 0));
+    }
+  }
+
+  /**
+   * Records a skull tile entity update, also used for skulls already loaded when recording starts.
+   * @param properties The texture property values of the skull
+   */
+  public synchronized void skull(long pos, List<String> properties) {
+    if (begin(EVENT_SKULL, propertiesSize(properties))) {
+      buffer.putLong(pos);
+      putProperties(properties);
+    }
+  }
+
+  /**
+   * Records a right-click on a skull.
+   */
+  public synchronized void click(long pos) {
+    if (begin(EVENT_CLICK, 0)) {
+      buffer.putLong(pos);
+    }
+  }
+
+  /**
+   * Records the verdict of a texture check, so replays can run without the skin files.
+   */
+  public synchronized void verdict(long pos, boolean ghost) {
+    if (begin(EVENT_VERDICT, 0)) {
+      buffer.putLong(pos);
+      buffer.put((byte) (ghost ? 1 : 0));
+    }
+  }
+
+  /**
+   * Writes the remaining events and closes the file. Blocks until the background thread is done.
+   * @throws IOException If any write failed
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flush();
+    }
+    executor.execute(() -> {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    });
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Starts an event, making room for it first.
+   * @param extraSize Bytes the event needs beyond the fixed part
+   * @return false if the capture is closed or failed
+   */
+  private boolean begin(byte type, int extraSize) {
+    if (closed || failure != null) {
+      return false;
+    }
+    int size = MAX_FIXED_EVENT_SIZE + extraSize;
+    if (buffer.remaining() < size) {
+      flush();
+      if (buffer.capacity() < size) {
+        buffer = ByteBuffer.allocate(size);
+      }
+    }
+
+    long now = (System.nanoTime() - startNanos) / 1000;
+    buffer.put(type);
+    putVarLong(now - lastEventMicros);
+    lastEventMicros = now;
+    eventCount++;
+    return true;
+  }
+
+  /**
+   * Hands the filled part of the buffer to the background thread and starts a new one.
+   */
+  private void flush() {
+    if (buffer.position() == 0) {
+      return;
+    }
+    ByteBuffer full = buffer;
+    full.flip();
+    bytesWritten += full.remaining();
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    executor.execute(() -> {
+      try {
+        while (full.hasRemaining()) {
+          channel.write(full);
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+    });
+  }
+
+  /**
+   * Writes texture property values, each as a reference to an earlier value or as new string.
+   * A reference is the value's number, 0 announces a new value that gets the next number.
+   */
+  private void putProperties(List<String> properties) {
+    putVarLong(properties.size());
+    for (String value : properties) {
+      Integer number = strings.get(value);
+      if (number != null) {
+        putVarLong(number);
+        continue;
+      }
+
+      strings.put(value, strings.size() + 1);
+      putVarLong(0);
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      putVarLong(bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  private int chunkPropertiesSize(List<List<String>> properties) {
+    int size = 0;
+    for (List<String> values : properties) {
+      size += propertiesSize(values);
+    }
+    return size;
+  }
+
+  private int propertiesSize(List<String> properties) {
+    int size = 10;
+    for (String value : properties) {
+      // Upper bound, UTF-8 needs at most 3 bytes per char
+      size += value.length() * 3 + 20;
+    }
+    return size;
+  }
+
+  private void putVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+}
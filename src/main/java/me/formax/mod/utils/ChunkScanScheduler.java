@@ -0,0 +1,150 @@
+package me.formax.mod.utils;
+
+/**
+ * Decides which chunks the periodic radius scan visits, and in which order.
+ * A chunk is clean once it was scanned and stays clean until a block in it changes or it is
+ * unloaded, so a player standing in an unchanged area causes no scanning at all. Dirty chunks in
+ * range are visited nearest first, measured from where the player will be shortly, so chunks in
+ * the direction of movement come before the ones left behind. Client thread only.
+ */
+public class ChunkScanScheduler {
+
+  // Ticks of movement the scan looks ahead of the player (2 seconds)
+  private static final double LOOKAHEAD_TICKS = 40;
+
+  // Chunks scanned since their last change, packed with chunkKey
+  private final LongHashSet clean = new LongHashSet();
+
+  // Dirty chunks of the current plan in scan order, and the index of the next one
+  private long[] planned = new long[0];
+  private double[] scores = new double[0];
+  private int plannedCount = 0;
+  private int next = 0;
+
+  /**
+   * Packs chunk coordinates into a long. Never equals BlockKeys.NONE for chunks inside the world border.
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
+   * @return The packed chunk key
+   */
+  public static long chunkKey(int chunkX, int chunkZ) {
+    return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+  }
+
+  public static int chunkX(long chunkKey) {
+    return (int) (chunkKey >> 32);
+  }
+
+  public static int chunkZ(long chunkKey) {
+    return (int) chunkKey;
+  }
+
+  /**
+   * Marks a chunk as changed, it is scanned again when it comes up in a plan.
+   * Also used for unloaded chunks, which are scanned as soon as they load again.
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
+   */
+  public void markDirty(int chunkX, int chunkZ) {
+    clean.remove(chunkKey(chunkX, chunkZ));
+  }
+
+  /**
+   * Marks a chunk as scanned in full.
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
+   */
+  public void markScanned(int chunkX, int chunkZ) {
+    clean.add(chunkKey(chunkX, chunkZ));
+  }
+
+  public boolean isDirty(int chunkX, int chunkZ) {
+    return !clean.contains(chunkKey(chunkX, chunkZ));
+  }
+
+  /**
+   * Forgets all chunks and the current plan, for a world change.
+   */
+  public void clear() {
+    clean.clear();
+    plannedCount = 0;
+    next = 0;
+  }
+
+  /**
+   * Plans a pass over the dirty chunks overlapping the square of the given radius around the player.
+   * @param x Player X coordinate
+   * @param z Player Z coordinate
+   * @param motionX Player movement along X in blocks per tick
+   * @param motionZ Player movement along Z in blocks per tick
+   * @param radius The scan radius in blocks
+   * @return The number of chunks planned
+   */
+  public int plan(double x, double z, double motionX, double motionZ, int radius) {
+    int minChunkX = ((int) Math.floor(x) - radius) >> 4;
+    int maxChunkX = ((int) Math.floor(x) + radius) >> 4;
+    int minChunkZ = ((int) Math.floor(z) - radius) >> 4;
+    int maxChunkZ = ((int) Math.floor(z) + radius) >> 4;
+
+    int capacity = (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+    if (planned.length < capacity) {
+      planned = new long[capacity];
+      scores = new double[capacity];
+    }
+
+    // Measure distances from a point ahead of the player, limited to the scan radius
+    double aheadX = motionX * LOOKAHEAD_TICKS;
+    double aheadZ = motionZ * LOOKAHEAD_TICKS;
+    double ahead = Math.sqrt(aheadX * aheadX + aheadZ * aheadZ);
+    if (ahead > radius) {
+      aheadX = aheadX * radius / ahead;
+      aheadZ = aheadZ * radius / ahead;
+    }
+    double originX = x + aheadX;
+    double originZ = z + aheadZ;
+
+    plannedCount = 0;
+    next = 0;
+    for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+      for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+        long key = chunkKey(chunkX, chunkZ);
+        if (clean.contains(key)) {
+          continue;
+        }
+
+        double dx = (chunkX << 4) + 8 - originX;
+        double dz = (chunkZ << 4) + 8 - originZ;
+        insert(key, dx * dx + dz * dz);
+      }
+    }
+    return plannedCount;
+  }
+
+  /**
+   * @return true if the current plan has chunks left
+   */
+  public boolean hasNext() {
+    return next < plannedCount;
+  }
+
+  /**
+   * @return The packed key of the next chunk of the current plan, check hasNext first
+   */
+  public long nextChunk() {
+    return planned[next++];
+  }
+
+  /**
+   * Inserts a chunk into the plan sorted by score, plans hold only a few dozen chunks.
+   */
+  private void insert(long key, double score) {
+    int i = plannedCount++;
+    while (i > 0 && scores[i - 1] > score) {
+      planned[i] = planned[i - 1];
+      scores[i] = scores[i - 1];
+      i--;
+    }
+    planned[i] = key;
+    scores[i] = score;
+  }
+}
@@ -0,0 +1,43 @@
+package me.formax.mod.utils;
+
+import net.minecraft.util.EnumParticleTypes;
+
+/**
+ * Decides on the netty thread whether a particle packet is a flame on a tracked ghost head.
+ * Checked cheapest first: the particle type through a lookup table indexed by ordinal, then the
+ * bounding box of the tracked heads, then the per-head probe. Allocates nothing per particle.
+ */
+public class FlameParticleFilter {
+
+  // Particle types unclaimed ghost heads spawn, indexed by ordinal
+  private static final boolean[] FLAME_TYPES = new boolean[EnumParticleTypes.values().length];
+
+  static {
+    FLAME_TYPES[EnumParticleTypes.FLAME.ordinal()] = true;
+    FLAME_TYPES[EnumParticleTypes.LAVA.ordinal()] = true;
+  }
+
+  private final HeadSpatialIndex index;
+
+  /**
+   * @param index The ghost heads particles are matched against
+   */
+  public FlameParticleFilter(HeadSpatialIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Finds the ghost head a particle is a flame of.
+   * @param type The particle type
+   * @param x Particle X coordinate
+   * @param y Particle Y coordinate
+   * @param z Particle Z coordinate
+   * @return The packed position of the head, or BlockKeys.NONE if the particle is not a flame on a head
+   */
+  public long match(EnumParticleTypes type, double x, double y, double z) {
+    if (type == null || !FLAME_TYPES[type.ordinal()]) {
+      return BlockKeys.NONE;
+    }
+    return index.findHead(x, y, z);
+  }
+}
@@ -1,46 +1,87 @@
 package me.formax.mod.utils;
 
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.settings.GameSettings;
+import net.minecraft.client.renderer.EntityRenderer;
+import net.minecraft.client.renderer.texture.DynamicTexture;
+import net.minecraft.client.settings.KeyBinding;
 import net.minecraft.util.ChatComponentText;
+import net.minecraftforge.fml.client.registry.ClientRegistry;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.InputEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.relauncher.ReflectionHelper;
 import org.lwjgl.input.Keyboard;
 
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/**
+ * Fullbright through a constant lightmap instead of an out-of-range gamma setting.
+ * While enabled, every entry of the renderer's 16x16 lightmap is full white, uploaded once,
+ * and the renderer's update flag is cleared before each frame so the lightmap is neither
+ * recomputed nor uploaded again. The game settings are not touched, so nothing invalid ends
+ * up in the options file. Disabling puts the saved lightmap back and lets vanilla take over.
+ */
 public class FullbrightToggle {
 
+  // Lightmap entry for full sky and block light
+  private static final int FULL_BRIGHT = 0xFFFFFFFF;
+
   private static boolean fullbrightEnabled = false;
-  private static float originalGamma = 1.0F;
 
-  // Set the keybind here (default: G key)
-  private static final int TOGGLE_KEY = Keyboard.KEY_G;
+  // Lightmap of the renderer before fullbright was enabled
+  private static int[] originalLightmap = null;
+
+  // Private EntityRenderer fields, looked up once by their development and obfuscated names
+  private static Field lightmapUpdateNeeded = null;
+  private static Field lightmapColors = null;
+  private static Field lightmapTexture = null;
+  private static boolean fieldsResolved = false;
+
+  // Default key: G, can be changed in the controls menu
+  private final KeyBinding toggleKey = new KeyBinding("key.ghosthunt.fullbright", Keyboard.KEY_G, "key.categories.ghosthunt");
+
+  public FullbrightToggle() {
+    ClientRegistry.registerKeyBinding(toggleKey);
+  }
 
   @SubscribeEvent
   public void onKeyInput(InputEvent.KeyInputEvent event) {
-    // Check if the toggle key was pressed
-    if (Keyboard.isKeyDown(TOGGLE_KEY)) {
+    // Only presses of the bound key are counted, other keys cost nothing here
+    if (toggleKey.isPressed()) {
       toggleFullbright();
     }
   }
 
+  /**
+   * Keeps the renderer from rebuilding the lightmap in the frame about to be drawn.
+   * Client ticks mark it for an update, this runs after them and before the world is rendered.
+   */
+  @SubscribeEvent
+  public void onRenderTick(TickEvent.RenderTickEvent event) {
+    if (event.phase != TickEvent.Phase.START || !fullbrightEnabled) {
+      return;
+    }
+
+    EntityRenderer renderer = Minecraft.getMinecraft().entityRenderer;
+    try {
+      lightmapUpdateNeeded.setBoolean(renderer, false);
+    } catch (IllegalAccessException e) {
+      disable();
+    }
+  }
+
   /**
    * Toggles fullbright on/off
    */
   private void toggleFullbright() {
-    Minecraft mc = Minecraft.getMinecraft();
-    GameSettings settings = mc.gameSettings;
-
     if (fullbrightEnabled) {
-      // Disable fullbright - restore original gamma
-      settings.gammaSetting = originalGamma;
-      fullbrightEnabled = false;
+      disable();
       sendMessage("§c§lFullbright: §cOFF");
-    } else {
-      // Enable fullbright - save current gamma and set to max
-      originalGamma = settings.gammaSetting;
-      settings.gammaSetting = 100.0F; // Maximum brightness
-      fullbrightEnabled = true;
+    } else if (enable()) {
       sendMessage("§a§lFullbright: §aON");
+    } else {
+      sendMessage("§cFullbright is not available with this renderer");
     }
   }
 
@@ -53,27 +94,68 @@ public class FullbrightToggle {
 
   /**
    * Manually enable fullbright
+   * @return false if the renderer's lightmap could not be accessed
    */
-  public static void enable() {
-    if (!fullbrightEnabled) {
-      Minecraft mc = Minecraft.getMinecraft();
-      GameSettings settings = mc.gameSettings;
-      originalGamma = settings.gammaSetting;
-      settings.gammaSetting = 100.0F;
-      fullbrightEnabled = true;
+  public static boolean enable() {
+    if (fullbrightEnabled) {
+      return true;
     }
+    if (!resolveFields()) {
+      return false;
+    }
+
+    EntityRenderer renderer = Minecraft.getMinecraft().entityRenderer;
+    try {
+      int[] colors = (int[]) lightmapColors.get(renderer);
+      originalLightmap = colors.clone();
+      Arrays.fill(colors, FULL_BRIGHT);
+      ((DynamicTexture) lightmapTexture.get(renderer)).updateDynamicTexture();
+      lightmapUpdateNeeded.setBoolean(renderer, false);
+    } catch (IllegalAccessException e) {
+      return false;
+    }
+    fullbrightEnabled = true;
+    return true;
   }
 
   /**
    * Manually disable fullbright
    */
   public static void disable() {
-    if (fullbrightEnabled) {
-      Minecraft mc = Minecraft.getMinecraft();
-      GameSettings settings = mc.gameSettings;
-      settings.gammaSetting = originalGamma;
-      fullbrightEnabled = false;
+    if (!fullbrightEnabled) {
+      return;
+    }
+    fullbrightEnabled = false;
+
+    EntityRenderer renderer = Minecraft.getMinecraft().entityRenderer;
+    try {
+      // Restore the saved lightmap right away, vanilla recomputes it for the next frame anyway
+      int[] colors = (int[]) lightmapColors.get(renderer);
+      System.arraycopy(originalLightmap, 0, colors, 0, colors.length);
+      ((DynamicTexture) lightmapTexture.get(renderer)).updateDynamicTexture();
+      lightmapUpdateNeeded.setBoolean(renderer, true);
+    } catch (IllegalAccessException e) {
+      // Nothing to restore, the fields were accessible when fullbright was enabled
+    }
+    originalLightmap = null;
+  }
+
+  /**
+   * Looks up the lightmap fields of EntityRenderer.
+   * @return false if any of them does not exist
+   */
+  private static boolean resolveFields() {
+    if (!fieldsResolved) {
+      fieldsResolved = true;
+      try {
+        lightmapUpdateNeeded = ReflectionHelper.findField(EntityRenderer.class, "lightmapUpdateNeeded", "field_78536_aa");
+        lightmapColors = ReflectionHelper.findField(EntityRenderer.class, "lightmapColors", "field_78504_Q");
+        lightmapTexture = ReflectionHelper.findField(EntityRenderer.class, "lightmapTexture", "field_78513_d");
+      } catch (ReflectionHelper.UnableToFindFieldException e) {
+        lightmapUpdateNeeded = null;
+      }
     }
+    return lightmapUpdateNeeded != null && lightmapColors != null && lightmapTexture != null;
   }
 
   private void sendMessage(String message) {
@@ -82,4 +164,4 @@ public class FullbrightToggle {
       mc.thePlayer.addChatMessage(new ChatComponentText(message));
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,491 @@
+package me.formax.mod.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Persistent record of the ghost heads found on one server world and their claim states,
+ * so claims and the all-time total survive restarts and reconnects.
+ * <p>
+ * Changes are appended as fixed-size binary records to a memory-mapped log file. Replaying the log
+ * rebuilds the state, a record torn by a crash fails its checksum and ends the replay. When most
+ * records are superseded the log is compacted to one record set per live head. The compacted image
+ * is written to a temporary file, synced and atomically renamed to a side file, and only then copied
+ * over the log, with everything after it cleared. A crash at any point leaves either the old log or a
+ * complete image to finish the copy from on the next open, so it loses nothing.
+ * <p>
+ * All file work runs on a single background thread. The client thread keeps its own copy of the
+ * state, which is filled once the log has been loaded and kept up to date as changes are recorded.
+ */
+public class GhostDatabase {
+
+  // File header, "GHDB" followed by the format version and 8 reserved bytes
+  private static final int MAGIC = 0x47484442;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  // Record layout: int checksum, byte type, byte value, 2 reserved bytes, long payload
+  private static final int RECORD_SIZE = 16;
+  private static final byte RECORD_END = 0;
+  private static final byte RECORD_GHOST = 1;
+  private static final byte RECORD_STATE = 2;
+  private static final byte RECORD_REMOVED = 3;
+  private static final byte RECORD_TOTAL = 4;
+
+  // Initial size of the mapped region, doubled whenever it fills up
+  private static final int INITIAL_MAPPING = 64 * 1024;
+
+  // Compact once the log holds this many records and most of them are superseded
+  private static final int COMPACT_MIN_RECORDS = 4096;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "GhostHunt Database");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Client thread state: known ghost heads (packed position -> claim state) and the all-time total
+  private final LongLongHashMap ghosts = new LongLongHashMap();
+  private long totalFound = 0;
+  private boolean loaded = false;
+
+  // Result of the background load, handed to the client thread by takeLoaded
+  private volatile Loaded pendingLoad = null;
+
+  // Counts opened logs, so a load that finishes after the next open is ignored
+  private int generation = 0;
+
+  // Background thread state
+  private Log log = null;
+
+  /**
+   * State read from a log, published by the background thread.
+   */
+  private static class Loaded {
+    final int generation;
+    final LongLongHashMap ghosts;
+    final long totalFound;
+
+    Loaded(int generation, LongLongHashMap ghosts, long totalFound) {
+      this.generation = generation;
+      this.ghosts = ghosts;
+      this.totalFound = totalFound;
+    }
+  }
+
+  /**
+   * Switches to the log of another server world and starts loading it in the background.
+   * The client thread state is empty until takeLoaded reports the load as done.
+   * @param file The log file, created if missing
+   */
+  public void open(File file) {
+    ghosts.clear();
+    totalFound = 0;
+    loaded = false;
+    pendingLoad = null;
+    int openGeneration = ++generation;
+
+    submit(() -> {
+      closeLog();
+      try {
+        log = new Log(file);
+        pendingLoad = new Loaded(openGeneration, log.copyGhosts(), log.totalFound);
+      } catch (IOException e) {
+        // Run without persistence for this world
+        log = null;
+        pendingLoad = new Loaded(openGeneration, new LongLongHashMap(), 0);
+      }
+    });
+  }
+
+  /**
+   * Flushes and closes the current log.
+   */
+  public void close() {
+    ++generation;
+    loaded = false;
+    submit(this::closeLog);
+  }
+
+  /**
+   * Merges the loaded log into the client thread state once the background load is done.
+   * Changes recorded while the load was running are kept.
+   * @return The loaded ghost heads (packed position -> claim state) the first time it is called
+   * after the load finished, null otherwise
+   */
+  public LongLongHashMap takeLoaded() {
+    Loaded result = pendingLoad;
+    if (result == null || loaded || result.generation != generation) {
+      return null;
+    }
+    pendingLoad = null;
+    loaded = true;
+
+    // Heads found before the load finished only add to the total if the log did not know them
+    long total = result.totalFound;
+    for (int slot = ghosts.firstSlot(); slot >= 0; slot = ghosts.nextSlot(slot)) {
+      if (!result.ghosts.containsKey(ghosts.keyAt(slot))) {
+        total++;
+      }
+    }
+    totalFound = total;
+
+    for (int slot = result.ghosts.firstSlot(); slot >= 0; slot = result.ghosts.nextSlot(slot)) {
+      long key = result.ghosts.keyAt(slot);
+      long state = Math.max(result.ghosts.valueAt(slot), ghosts.get(key, GhostHeadTable.UNKNOWN));
+      ghosts.put(key, state);
+    }
+    return result.ghosts;
+  }
+
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  public long getTotalFound() {
+    return totalFound;
+  }
+
+  public int getKnownGhostCount() {
+    return ghosts.size();
+  }
+
+  /**
+   * @param key The packed position of the head
+   * @return The recorded claim state, or -1 if the head is not a known ghost
+   */
+  public int getState(long key) {
+    return (int) ghosts.get(key, -1);
+  }
+
+  /**
+   * Records a ghost head. A head that was already known does not count towards the total again.
+   * @param key The packed position of the head
+   * @return true if the head was not known before
+   */
+  public boolean recordGhost(long key) {
+    if (ghosts.containsKey(key)) {
+      return false;
+    }
+    ghosts.put(key, GhostHeadTable.UNKNOWN);
+    totalFound++;
+    submit(() -> {
+      // The log counts the head itself, it may know it already if it was found before the load finished
+      if (log != null && !log.ghosts.containsKey(key)) {
+        log.append(RECORD_GHOST, (byte) 0, key);
+        log.append(RECORD_TOTAL, (byte) 0, log.totalFound + 1);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Records a claim state change of a known ghost head.
+   * @param key The packed position of the head
+   * @param state The new claim state
+   */
+  public void recordState(long key, byte state) {
+    long current = ghosts.get(key, -1);
+    if (current < 0 || current >= state) {
+      return;
+    }
+    ghosts.put(key, state);
+    submit(() -> {
+      if (log != null) {
+        log.append(RECORD_STATE, state, key);
+      }
+    });
+  }
+
+  /**
+   * Records that a ghost head is gone or turned out not to be a ghost.
+   * @param key The packed position of the head
+   */
+  public void recordRemoved(long key) {
+    if (!ghosts.remove(key)) {
+      return;
+    }
+    submit(() -> {
+      if (log != null) {
+        log.append(RECORD_REMOVED, (byte) 0, key);
+      }
+    });
+  }
+
+  private void submit(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Executor is gone while the game shuts down, nothing left to persist to
+    }
+  }
+
+  private void closeLog() {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+  }
+
+  /**
+   * The open log file and the state replayed from it. Background thread only.
+   */
+  private static class Log {
+    private final File file;
+    private final File compactFile;
+    private final File compactTempFile;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writeOffset;
+    private int records;
+
+    private final LongLongHashMap ghosts = new LongLongHashMap();
+    private long totalFound = 0;
+
+    Log(File file) throws IOException {
+      this.file = file;
+      this.compactFile = new File(file.getPath() + ".compact");
+      this.compactTempFile = new File(file.getPath() + ".compact.tmp");
+      File dir = file.getParentFile();
+      if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Could not create " + dir);
+      }
+
+      this.raf = new RandomAccessFile(file, "rw");
+      this.channel = raf.getChannel();
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_MAPPING, channel.size()));
+
+      // A finished compaction that was not copied over the log yet replaces it, a half written one is dropped
+      if (compactFile.isFile()) {
+        byte[] image = Files.readAllBytes(compactFile.toPath());
+        if (isValidImage(image)) {
+          // Clear the whole old log after the image, its stale records must not be replayed after the image's own
+          writeImage(image, image.length);
+          zero(image.length, buffer.capacity());
+          buffer.force();
+        }
+        Files.delete(compactFile.toPath());
+      }
+      Files.deleteIfExists(compactTempFile.toPath());
+
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, 0);
+        zero(HEADER_SIZE, buffer.capacity());
+      }
+      replay();
+
+      if (shouldCompact()) {
+        compact();
+      }
+    }
+
+    /**
+     * Reads all valid records and positions the write offset after the last one.
+     */
+    private void replay() {
+      int offset = HEADER_SIZE;
+      records = 0;
+      while (offset + RECORD_SIZE <= buffer.capacity()) {
+        int check = buffer.getInt(offset);
+        byte type = buffer.get(offset + 4);
+        byte value = buffer.get(offset + 5);
+        long payload = buffer.getLong(offset + 8);
+        if (type == RECORD_END || check != checksum(type, value, payload)) {
+          break;
+        }
+        apply(type, value, payload);
+        offset += RECORD_SIZE;
+        records++;
+      }
+      writeOffset = offset;
+
+      // Clear whatever follows, e.g. a torn record, so it cannot be mistaken for a record later
+      zero(writeOffset, Math.min(buffer.capacity(), writeOffset + RECORD_SIZE));
+    }
+
+    private void apply(byte type, byte value, long payload) {
+      switch (type) {
+        case RECORD_GHOST:
+          if (!ghosts.containsKey(payload)) {
+            ghosts.put(payload, GhostHeadTable.UNKNOWN);
+          }
+          break;
+        case RECORD_STATE:
+          if (ghosts.containsKey(payload)) {
+            ghosts.put(payload, Math.max(value, ghosts.get(payload, 0)));
+          }
+          break;
+        case RECORD_REMOVED:
+          ghosts.remove(payload);
+          break;
+        case RECORD_TOTAL:
+          totalFound = Math.max(totalFound, payload);
+          break;
+        default:
+          break;
+      }
+    }
+
+    LongLongHashMap copyGhosts() {
+      LongLongHashMap copy = new LongLongHashMap();
+      for (int slot = ghosts.firstSlot(); slot >= 0; slot = ghosts.nextSlot(slot)) {
+        copy.put(ghosts.keyAt(slot), ghosts.valueAt(slot));
+      }
+      return copy;
+    }
+
+    void append(byte type, byte value, long payload) {
+      apply(type, value, payload);
+      try {
+        ensureCapacity(writeOffset + RECORD_SIZE);
+      } catch (IOException e) {
+        // Disk full or similar, keep the state in memory only
+        return;
+      }
+
+      // Payload first and the checksum last, so a torn write never looks like a valid record
+      buffer.putLong(writeOffset + 8, payload);
+      buffer.put(writeOffset + 5, value);
+      buffer.put(writeOffset + 4, type);
+      buffer.putInt(writeOffset, checksum(type, value, payload));
+      writeOffset += RECORD_SIZE;
+      records++;
+
+      if (shouldCompact()) {
+        compact();
+      }
+    }
+
+    private boolean shouldCompact() {
+      return records >= COMPACT_MIN_RECORDS && records > liveRecords() * 4;
+    }
+
+    private int liveRecords() {
+      // One ghost record per head, one state record per head with a known state, one total record
+      return ghosts.size() * 2 + 1;
+    }
+
+    /**
+     * Rewrites the log as the minimal set of records for the current state.
+     */
+    private void compact() {
+      ByteBuffer image = ByteBuffer.allocate(HEADER_SIZE + liveRecords() * RECORD_SIZE);
+      image.putInt(MAGIC).putInt(VERSION).putLong(0);
+      int count = 0;
+      for (int slot = ghosts.firstSlot(); slot >= 0; slot = ghosts.nextSlot(slot)) {
+        long key = ghosts.keyAt(slot);
+        byte state = (byte) ghosts.valueAt(slot);
+        putRecord(image, RECORD_GHOST, (byte) 0, key);
+        count++;
+        if (state != GhostHeadTable.UNKNOWN) {
+          putRecord(image, RECORD_STATE, state, key);
+          count++;
+        }
+      }
+      putRecord(image, RECORD_TOTAL, (byte) 0, totalFound);
+      count++;
+
+      try {
+        // Persist the complete compacted image under its final name before touching the log
+        try (FileOutputStream out = new FileOutputStream(compactTempFile)) {
+          out.write(image.array(), 0, image.position());
+          out.getFD().sync();
+        }
+        Files.move(compactTempFile.toPath(), compactFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        int previousEnd = writeOffset;
+        writeImage(image.array(), image.position());
+        zero(image.position(), previousEnd);
+        buffer.force();
+        writeOffset = image.position();
+        records = count;
+        Files.delete(compactFile.toPath());
+      } catch (IOException e) {
+        // Keep appending to the uncompacted log
+      }
+    }
+
+    /**
+     * Checks a compacted image read back from its side file: the header, whole records only, and
+     * every record intact up to the end.
+     */
+    private static boolean isValidImage(byte[] image) {
+      if (image.length < HEADER_SIZE || (image.length - HEADER_SIZE) % RECORD_SIZE != 0) {
+        return false;
+      }
+      ByteBuffer in = ByteBuffer.wrap(image);
+      if (in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+        return false;
+      }
+      for (int offset = HEADER_SIZE; offset < image.length; offset += RECORD_SIZE) {
+        byte type = in.get(offset + 4);
+        if (type == RECORD_END || in.getInt(offset) != checksum(type, in.get(offset + 5), in.getLong(offset + 8))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void writeImage(byte[] image, int length) throws IOException {
+      ensureCapacity(length);
+      for (int i = 0; i < length; i++) {
+        buffer.put(i, image[i]);
+      }
+    }
+
+    private static void putRecord(ByteBuffer out, byte type, byte value, long payload) {
+      out.putInt(checksum(type, value, payload)).put(type).put(value).putShort((short) 0).putLong(payload);
+    }
+
+    private void ensureCapacity(int size) throws IOException {
+      if (size <= buffer.capacity()) {
+        return;
+      }
+      int capacity = buffer.capacity();
+      while (capacity < size) {
+        capacity <<= 1;
+      }
+      buffer.force();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void zero(int from, int to) {
+      for (int i = from; i < to; i++) {
+        buffer.put(i, (byte) 0);
+      }
+    }
+
+    void close() {
+      try {
+        buffer.force();
+        channel.close();
+        raf.close();
+      } catch (IOException e) {
+        // Written records are in the page cache already
+      }
+    }
+
+    private static int checksum(byte type, byte value, long payload) {
+      long h = payload ^ ((long) type << 56) ^ ((long) (value & 0xFF) << 48) ^ 0x5DEECE66DL;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      int check = (int) h;
+      // Zeroed space never passes as a record
+      return check == 0 ? 1 : check;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package me.formax.mod.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Index of ghost reference skins, each compiled once into the packed ARGB pixels of the compared
+ * head region. Only these 128 ints per reference are kept, not the full skin images.
+ * <p>
+ * A match needs at least 95% equal pixels, so at most 6 pixels differ. Pixels are compared with a
+ * per-channel tolerance, so recompressed or slightly tinted copies of a reference still match, and
+ * a comparison stops as soon as a seventh pixel differs, which rejects most skins within a few pixels.
+ * <p>
+ * A lookup compares the candidate with every reference in turn. Reference sets are small, and the
+ * early exit makes each comparison with a non-matching reference cost only a few pixels.
+ * <p>
+ * Reads are lock-free against an immutable snapshot, adding references rebuilds the snapshot.
+ */
+public class GhostFingerprintIndex {
+
+  // Region to compare (top portion of the head texture)
+  // Minecraft head textures are 64x64, the top of the head is typically in the upper portion
+  public static final int REGION_X = 8;
+  public static final int REGION_Y = 0;
+  public static final int REGION_WIDTH = 16;
+  public static final int REGION_HEIGHT = 8;
+  public static final int REGION_PIXELS = REGION_WIDTH * REGION_HEIGHT;
+
+  // Consider it a match if 95% or more pixels match
+  private static final double MATCH_THRESHOLD = 0.95;
+  public static final int MAX_MISMATCHES = REGION_PIXELS - (int) Math.ceil(REGION_PIXELS * MATCH_THRESHOLD);
+
+  // Largest difference per color channel (0-255) at which two pixels still count as equal
+  public static final int DEFAULT_CHANNEL_TOLERANCE = 8;
+
+  private final int channelTolerance;
+
+  private static final class Snapshot {
+    final String[] ids;
+    final int[][] regions;
+
+    Snapshot(String[] ids, int[][] regions) {
+      this.ids = ids;
+      this.regions = regions;
+    }
+  }
+
+  private volatile Snapshot snapshot = new Snapshot(new String[0], new int[0][]);
+
+  public GhostFingerprintIndex() {
+    this(DEFAULT_CHANNEL_TOLERANCE);
+  }
+
+  /**
+   * @param channelTolerance Largest difference per color channel at which pixels count as equal, 0 for exact matches
+   */
+  public GhostFingerprintIndex(int channelTolerance) {
+    this.channelTolerance = channelTolerance;
+  }
+
+  /**
+   * Adds a reference texture to the index.
+   * @param id The texture ID of the reference
+   * @param region The packed region pixels, see extractRegion
+   * @return false if the reference was already indexed
+   */
+  public synchronized boolean add(String id, int[] region) {
+    Snapshot current = snapshot;
+    for (String existing : current.ids) {
+      if (existing.equals(id)) {
+        return false;
+      }
+    }
+
+    int count = current.ids.length + 1;
+    String[] ids = Arrays.copyOf(current.ids, count);
+    int[][] regions = Arrays.copyOf(current.regions, count);
+    ids[count - 1] = id;
+    regions[count - 1] = region.clone();
+
+    snapshot = new Snapshot(ids, regions);
+    return true;
+  }
+
+  public int size() {
+    return snapshot.ids.length;
+  }
+
+  /**
+   * Identifies the set of indexed references independently of the order they were added in,
+   * together with the tolerance, since both decide which textures match.
+   * @return A non-zero signature of the reference texture IDs and the tolerance
+   */
+  public long signature() {
+    long signature = channelTolerance * 0xC2B2AE3D27D4EB4FL;
+    for (String id : snapshot.ids) {
+      long h = id.hashCode() * 0x9E3779B97F4A7C15L;
+      signature += h ^ (h >>> 29);
+    }
+    return signature == 0 ? 1 : signature;
+  }
+
+  public boolean contains(String id) {
+    for (String existing : snapshot.ids) {
+      if (existing.equals(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds a reference the candidate region matches.
+   * @param region The packed region pixels of the candidate
+   * @return The texture ID of the matching reference, or null if none matches
+   */
+  public String find(int[] region) {
+    Snapshot current = snapshot;
+    for (int ref = 0; ref < current.ids.length; ref++) {
+      if (matches(region, current.regions[ref], MAX_MISMATCHES, channelTolerance)) {
+        return current.ids[ref];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compares two packed regions, giving up as soon as too many pixels differ.
+   * @param a The packed region pixels of one texture
+   * @param b The packed region pixels of the other texture
+   * @param maxMismatches Number of differing pixels still accepted as a match
+   * @param tolerance Largest difference per color channel at which pixels count as equal
+   * @return true if at most maxMismatches pixels differ
+   */
+  public static boolean matches(int[] a, int[] b, int maxMismatches, int tolerance) {
+    int mismatches = 0;
+    for (int i = 0; i < REGION_PIXELS; i++) {
+      int pa = a[i];
+      int pb = b[i];
+      if (pa != pb && (tolerance == 0 || !isClose(pa, pb, tolerance)) && ++mismatches > maxMismatches) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if every channel of two ARGB pixels differs by at most the tolerance, or both are fully transparent
+   */
+  private static boolean isClose(int a, int b, int tolerance) {
+    int alphaA = a >>> 24;
+    int alphaB = b >>> 24;
+    if (alphaA == 0 && alphaB == 0) {
+      // Encoders store anything in the color of invisible pixels
+      return true;
+    }
+    return Math.abs(alphaA - alphaB) <= tolerance
+            && Math.abs((a >> 16 & 0xFF) - (b >> 16 & 0xFF)) <= tolerance
+            && Math.abs((a >> 8 & 0xFF) - (b >> 8 & 0xFF)) <= tolerance
+            && Math.abs((a & 0xFF) - (b & 0xFF)) <= tolerance;
+  }
+
+  /**
+   * Reads the compared head region of a skin into packed ARGB ints, row by row.
+   * The usual skin formats are copied straight out of the raster, only other formats go through
+   * the color model.
+   * @param image The skin image
+   * @return The region pixels, or null if the image is too small
+   */
+  public static int[] extractRegion(BufferedImage image) {
+    if (image.getWidth() < REGION_X + REGION_WIDTH || image.getHeight() < REGION_Y + REGION_HEIGHT) {
+      return null;
+    }
+
+    Raster raster = image.getRaster();
+    int x = REGION_X - raster.getSampleModelTranslateX();
+    int y = REGION_Y - raster.getSampleModelTranslateY();
+    DataBuffer buffer = raster.getDataBuffer();
+    SampleModel model = raster.getSampleModel();
+    int[] region = new int[REGION_PIXELS];
+
+    // Packed ARGB ints, as created by the game and the benchmarks
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB && buffer instanceof DataBufferInt
+            && model instanceof SinglePixelPackedSampleModel) {
+      int[] data = ((DataBufferInt) buffer).getData();
+      int stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+      int start = buffer.getOffset() + ((SinglePixelPackedSampleModel) model).getOffset(x, y);
+      for (int row = 0; row < REGION_HEIGHT; row++) {
+        System.arraycopy(data, start + row * stride, region, row * REGION_WIDTH, REGION_WIDTH);
+      }
+      return region;
+    }
+
+    // Interleaved bytes, as ImageIO decodes RGBA and RGB PNG skins
+    if ((image.getType() == BufferedImage.TYPE_4BYTE_ABGR || image.getType() == BufferedImage.TYPE_3BYTE_BGR)
+            && buffer instanceof DataBufferByte && model instanceof PixelInterleavedSampleModel) {
+      PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+      byte[] data = ((DataBufferByte) buffer).getData();
+      int[] bands = interleaved.getBandOffsets();
+      boolean alpha = bands.length == 4;
+      int pixelStride = interleaved.getPixelStride();
+      int start = buffer.getOffset() + y * interleaved.getScanlineStride() + x * pixelStride;
+      for (int row = 0; row < REGION_HEIGHT; row++) {
+        int offset = start + row * interleaved.getScanlineStride();
+        for (int col = 0; col < REGION_WIDTH; col++, offset += pixelStride) {
+          int a = alpha ? data[offset + bands[3]] & 0xFF : 0xFF;
+          region[row * REGION_WIDTH + col] = a << 24 | (data[offset + bands[0]] & 0xFF) << 16
+                  | (data[offset + bands[1]] & 0xFF) << 8 | (data[offset + bands[2]] & 0xFF);
+        }
+      }
+      return region;
+    }
+
+    return image.getRGB(REGION_X, REGION_Y, REGION_WIDTH, REGION_HEIGHT, region, 0, REGION_WIDTH);
+  }
+}
@@ -0,0 +1,411 @@
+package me.formax.mod.utils;
+
+import java.util.Arrays;
+
+/**
+ * All per-head tracking state in one struct-of-arrays table: position, classification,
+ * claim state, a hash of the texture the head was last seen with and the client tick until which
+ * the last flame seen on the head counts.
+ * A head is in the table once it was picked up for a texture check, so the table also serves
+ * as the set of processed heads. Rows are kept dense (removal moves the last row into the gap),
+ * so passes over all heads walk plain arrays, and a position lookup goes through a single hash probe.
+ * The rows of each chunk are also linked into a list, so the heads of one chunk are found without
+ * walking the whole table.
+ * <p>
+ * Claim states only move forward: UNKNOWN to UNCLAIMED or CLAIMED, UNCLAIMED to CLAIMED.
+ * The version counter changes with every change that affects how heads are drawn or counted,
+ * so readers can tell whether anything they derived from the table is out of date.
+ * <p>
+ * Flame expiry runs on a timing wheel over client ticks. A head with flames has one wheel entry,
+ * which is not moved when more flames arrive: when it comes due the head is either expired or,
+ * if a later flame extended it, scheduled again. Each tick only touches the heads due in it.
+ * Client thread only.
+ */
+public class GhostHeadTable {
+
+  // Classification of the head's texture
+  public static final byte PENDING = 0;
+  public static final byte GHOST = 1;
+  public static final byte NOT_GHOST = 2;
+
+  // Claim state of a ghost head
+  public static final byte UNKNOWN = 0;
+  public static final byte UNCLAIMED = 1;
+  public static final byte CLAIMED = 2;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  // Texture hash of a head whose texture was not seen yet, e.g. one restored from the database
+  public static final int NO_TEXTURE = 0;
+
+  private static final int NO_ROW = -1;
+
+  // Packed position -> row
+  private final LongLongHashMap rows = new LongLongHashMap();
+
+  // Chunk key, see ChunkScanScheduler.chunkKey -> first row of the chunk's list
+  private final LongLongHashMap chunkRows = new LongLongHashMap();
+
+  private long[] positions = new long[INITIAL_CAPACITY];
+  private byte[] classifications = new byte[INITIAL_CAPACITY];
+  private byte[] states = new byte[INITIAL_CAPACITY];
+  private long[] flameDeadlines = new long[INITIAL_CAPACITY];
+
+  // Hash of the head's texture IDs, NO_TEXTURE until a texture was seen on the head
+  private int[] textures = new int[INITIAL_CAPACITY];
+
+  // Checks in a row that could not decide the head's texture, reset by a verdict
+  private byte[] undecided = new byte[INITIAL_CAPACITY];
+
+  // Neighbours in the list of the head's chunk, NO_ROW at the ends
+  private int[] nextInChunk = new int[INITIAL_CAPACITY];
+  private int[] prevInChunk = new int[INITIAL_CAPACITY];
+  private int size = 0;
+
+  // Heads with flames by the tick their flame deadline comes due
+  private final TickTimingWheel flameExpiry = new TickTimingWheel();
+
+  private int ghostCount = 0;
+  private int claimedCount = 0;
+  private int unclaimedCount = 0;
+
+  private long version = 0;
+
+  /**
+   * Adds a head with a pending classification, or finds the row it already has.
+   * @param key The packed position of the head
+   * @return The row of the head
+   */
+  public int track(long key) {
+    int row = rowOf(key);
+    if (row >= 0) {
+      return row;
+    }
+
+    if (size == positions.length) {
+      grow();
+    }
+    row = size++;
+    positions[row] = key;
+    classifications[row] = PENDING;
+    states[row] = UNKNOWN;
+    flameDeadlines[row] = 0;
+    textures[row] = NO_TEXTURE;
+    undecided[row] = 0;
+    rows.put(key, row);
+
+    // Link at the front of the chunk's list
+    long chunk = chunkOf(key);
+    int first = (int) chunkRows.get(chunk, NO_ROW);
+    nextInChunk[row] = first;
+    prevInChunk[row] = NO_ROW;
+    if (first != NO_ROW) {
+      prevInChunk[first] = row;
+    }
+    chunkRows.put(chunk, row);
+    return row;
+  }
+
+  /**
+   * Removes a head from the table.
+   * @param key The packed position of the head
+   * @return true if the head was tracked
+   */
+  public boolean remove(long key) {
+    int row = rowOf(key);
+    if (row < 0) {
+      return false;
+    }
+
+    if (classifications[row] == GHOST) {
+      ghostCount--;
+      countState(states[row], -1);
+      version++;
+    }
+    rows.remove(key);
+    flameExpiry.cancel(key);
+    unlinkFromChunk(row);
+
+    // Move the last row into the gap to keep rows dense
+    int last = --size;
+    if (row != last) {
+      positions[row] = positions[last];
+      classifications[row] = classifications[last];
+      states[row] = states[last];
+      flameDeadlines[row] = flameDeadlines[last];
+      textures[row] = textures[last];
+      undecided[row] = undecided[last];
+      rows.put(positions[row], row);
+
+      // Point the moved row's chunk neighbours at its new row
+      nextInChunk[row] = nextInChunk[last];
+      prevInChunk[row] = prevInChunk[last];
+      if (prevInChunk[row] != NO_ROW) {
+        nextInChunk[prevInChunk[row]] = row;
+      } else {
+        chunkRows.put(chunkOf(positions[row]), row);
+      }
+      if (nextInChunk[row] != NO_ROW) {
+        prevInChunk[nextInChunk[row]] = row;
+      }
+    }
+    return true;
+  }
+
+  private void unlinkFromChunk(int row) {
+    int prev = prevInChunk[row];
+    int next = nextInChunk[row];
+    if (prev != NO_ROW) {
+      nextInChunk[prev] = next;
+    } else if (next != NO_ROW) {
+      chunkRows.put(chunkOf(positions[row]), next);
+    } else {
+      chunkRows.remove(chunkOf(positions[row]));
+    }
+    if (next != NO_ROW) {
+      prevInChunk[next] = prev;
+    }
+  }
+
+  private static long chunkOf(long key) {
+    return ChunkScanScheduler.chunkKey(BlockKeys.x(key) >> 4, BlockKeys.z(key) >> 4);
+  }
+
+  public void clear() {
+    rows.clear();
+    chunkRows.clear();
+    flameExpiry.clear();
+    size = 0;
+    ghostCount = 0;
+    claimedCount = 0;
+    unclaimedCount = 0;
+    version++;
+  }
+
+  public boolean contains(long key) {
+    return rows.containsKey(key);
+  }
+
+  /**
+   * Starts a walk over the heads of one chunk. Rows move when heads are removed, so collect the
+   * positions first when removing heads during the walk.
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
+   * @return The first row of a head in the chunk, or -1 if there is none
+   */
+  public int firstInChunk(int chunkX, int chunkZ) {
+    return (int) chunkRows.get(ChunkScanScheduler.chunkKey(chunkX, chunkZ), NO_ROW);
+  }
+
+  /**
+   * @param row The current row of the walk
+   * @return The next row of a head in the same chunk, or -1 when the walk is done
+   */
+  public int nextInChunk(int row) {
+    return nextInChunk[row];
+  }
+
+  /**
+   * @param key The packed position of the head
+   * @return The row of the head, or -1 if it is not tracked
+   */
+  public int rowOf(long key) {
+    return (int) rows.get(key, -1);
+  }
+
+  /**
+   * Records the verdict of a texture check.
+   * A head that stops being a ghost loses its claim state and flames.
+   * @param row The row of the head
+   * @param ghost Whether the texture is a ghost texture
+   * @return The classification the head had before
+   */
+  public byte classify(int row, boolean ghost) {
+    undecided[row] = 0;
+    byte previous = classifications[row];
+    byte next = ghost ? GHOST : NOT_GHOST;
+    if (previous == next) {
+      return previous;
+    }
+
+    if (ghost) {
+      ghostCount++;
+      countState(states[row], 1);
+    } else if (previous == GHOST) {
+      ghostCount--;
+      countState(states[row], -1);
+      states[row] = UNKNOWN;
+      flameDeadlines[row] = 0;
+      flameExpiry.cancel(positions[row]);
+    }
+    classifications[row] = next;
+    version++;
+    return previous;
+  }
+
+  /**
+   * Moves a ghost head to a new claim state, unless that would move the state backwards.
+   * @param row The row of the head
+   * @param state UNCLAIMED or CLAIMED
+   * @return true if the state changed
+   */
+  public boolean setState(int row, byte state) {
+    byte previous = states[row];
+    if (classifications[row] != GHOST || state <= previous) {
+      return false;
+    }
+
+    countState(previous, -1);
+    countState(state, 1);
+    states[row] = state;
+    version++;
+    return true;
+  }
+
+  /**
+   * Counts a check that could not decide the head's texture, e.g. because its skin was not downloaded yet.
+   * Does not change the classification or the version.
+   * @param row The row of the head
+   * @return The number of such checks in a row, including this one
+   */
+  public int recordUndecided(int row) {
+    if (undecided[row] < Byte.MAX_VALUE) {
+      undecided[row]++;
+    }
+    return undecided[row];
+  }
+
+  /**
+   * @return The number of checks in a row that could not decide the head's texture
+   */
+  public int getUndecidedCount(int row) {
+    return undecided[row];
+  }
+
+  /**
+   * Forgets the undecided checks of a head, so it gets a fresh set of retries.
+   */
+  public void clearUndecided(int row) {
+    undecided[row] = 0;
+  }
+
+  /**
+   * Records the texture a head was seen with. Does not change the version.
+   * @param row The row of the head
+   * @param texture Hash of the head's texture IDs, not NO_TEXTURE
+   * @return true if the head was seen with a different texture before
+   */
+  public boolean setTexture(int row, int texture) {
+    int previous = textures[row];
+    textures[row] = texture;
+    return previous != NO_TEXTURE && previous != texture;
+  }
+
+  /**
+   * Records a flame seen on a ghost head. Does not change the version, flames come in constantly.
+   * @param row The row of the head
+   * @param tick The current client tick
+   * @param timeout Ticks a flame counts for
+   */
+  public void recordFlame(int row, long tick, long timeout) {
+    if (classifications[row] != GHOST) {
+      return;
+    }
+    // Only a head without flames needs a wheel entry, an existing one is extended when it comes due
+    if (flameDeadlines[row] == 0) {
+      flameExpiry.schedule(positions[row], tick + timeout);
+    }
+    flameDeadlines[row] = tick + timeout;
+  }
+
+  /**
+   * Forgets flames that timed out, so hasFlames only has to look at a single field.
+   * Only heads whose wheel entry is due are visited.
+   * @param tick The current client tick
+   * @return The number of heads whose flames expired
+   */
+  public int expireFlames(long tick) {
+    int expired = 0;
+    long key;
+    while ((key = flameExpiry.poll(tick)) != BlockKeys.NONE) {
+      int row = rowOf(key);
+      if (row < 0 || flameDeadlines[row] == 0) {
+        continue;
+      }
+      if (flameDeadlines[row] > tick) {
+        // Flames arrived after the entry was scheduled
+        flameExpiry.schedule(key, flameDeadlines[row]);
+      } else {
+        flameDeadlines[row] = 0;
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  public boolean hasFlames(int row) {
+    return flameDeadlines[row] != 0;
+  }
+
+  /**
+   * @return The number of heads with flames waiting on the timing wheel
+   */
+  public int getFlamingCount() {
+    return flameExpiry.size();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getPosition(int row) {
+    return positions[row];
+  }
+
+  public byte getClassification(int row) {
+    return classifications[row];
+  }
+
+  public byte getState(int row) {
+    return states[row];
+  }
+
+  public int getGhostCount() {
+    return ghostCount;
+  }
+
+  public int getClaimedCount() {
+    return claimedCount;
+  }
+
+  public int getUnclaimedCount() {
+    return unclaimedCount;
+  }
+
+  /**
+   * @return A counter that changes whenever heads are classified, claimed or removed
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  private void countState(byte state, int delta) {
+    if (state == CLAIMED) {
+      claimedCount += delta;
+    } else if (state == UNCLAIMED) {
+      unclaimedCount += delta;
+    }
+  }
+
+  private void grow() {
+    int capacity = positions.length * 2;
+    positions = Arrays.copyOf(positions, capacity);
+    classifications = Arrays.copyOf(classifications, capacity);
+    states = Arrays.copyOf(states, capacity);
+    flameDeadlines = Arrays.copyOf(flameDeadlines, capacity);
+    textures = Arrays.copyOf(textures, capacity);
+    undecided = Arrays.copyOf(undecided, capacity);
+    nextInChunk = Arrays.copyOf(nextInChunk, capacity);
+    prevInChunk = Arrays.copyOf(prevInChunk, capacity);
+  }
+}
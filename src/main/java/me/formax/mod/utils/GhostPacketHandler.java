@@ -0,0 +1,82 @@
+package me.formax.mod.utils;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import net.minecraft.client.Minecraft;
+import net.minecraft.network.play.server.S21PacketChunkData;
+import net.minecraft.network.play.server.S22PacketMultiBlockChange;
+import net.minecraft.network.play.server.S23PacketBlockChange;
+import net.minecraft.network.play.server.S26PacketMapChunkBulk;
+import net.minecraft.network.play.server.S2APacketParticles;
+import net.minecraft.network.play.server.S35PacketUpdateTileEntity;
+
+/**
+ * Network pipeline handler feeding the ghost head tracker.
+ * Particle packets are inspected directly on the netty thread. Chunk, block and tile entity
+ * packets are turned into discovery and eviction tasks that run on the client thread right
+ * after vanilla has applied the packet, so only the skull positions a packet touches are looked at.
+ */
+public class GhostPacketHandler extends ChannelDuplexHandler {
+
+  // Name of this handler in the network pipeline
+  public static final String NAME = "particle_listener";
+
+  // Tile entity update type used by the server for skulls
+  private static final int SKULL_TILE_ENTITY_TYPE = 4;
+
+  private final HeadTextureListener listener;
+
+  public GhostPacketHandler(HeadTextureListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    // Check if the packet is a particle packet
+    if (msg instanceof S2APacketParticles) {
+      listener.onParticlePacket((S2APacketParticles) msg);
+      super.channelRead(ctx, msg);
+      return;
+    }
+
+    // Let vanilla schedule its own handling first, our tasks then run after the packet is applied
+    super.channelRead(ctx, msg);
+
+    Minecraft mc = Minecraft.getMinecraft();
+    if (msg instanceof S21PacketChunkData) {
+      S21PacketChunkData packet = (S21PacketChunkData) msg;
+      int chunkX = packet.getChunkX();
+      int chunkZ = packet.getChunkZ();
+      mc.addScheduledTask(() -> listener.onChunkChanged(chunkX, chunkZ));
+    } else if (msg instanceof S26PacketMapChunkBulk) {
+      S26PacketMapChunkBulk packet = (S26PacketMapChunkBulk) msg;
+      int count = packet.getChunkCount();
+      int[] chunkXs = new int[count];
+      int[] chunkZs = new int[count];
+      for (int i = 0; i < count; i++) {
+        chunkXs[i] = packet.getChunkX(i);
+        chunkZs[i] = packet.getChunkZ(i);
+      }
+      mc.addScheduledTask(() -> {
+        for (int i = 0; i < count; i++) {
+          listener.onChunkChanged(chunkXs[i], chunkZs[i]);
+        }
+      });
+    } else if (msg instanceof S23PacketBlockChange) {
+      S23PacketBlockChange packet = (S23PacketBlockChange) msg;
+      mc.addScheduledTask(() -> listener.onBlockChanged(packet.getBlockPosition(), packet.getBlockState().getBlock()));
+    } else if (msg instanceof S22PacketMultiBlockChange) {
+      S22PacketMultiBlockChange packet = (S22PacketMultiBlockChange) msg;
+      mc.addScheduledTask(() -> {
+        for (S22PacketMultiBlockChange.BlockUpdateData update : packet.getChangedBlocks()) {
+          listener.onBlockChanged(update.getPos(), update.getBlockState().getBlock());
+        }
+      });
+    } else if (msg instanceof S35PacketUpdateTileEntity) {
+      S35PacketUpdateTileEntity packet = (S35PacketUpdateTileEntity) msg;
+      if (packet.getTileEntityType() == SKULL_TILE_ENTITY_TYPE) {
+        mc.addScheduledTask(() -> listener.onSkullUpdated(packet.getPos()));
+      }
+    }
+  }
+}
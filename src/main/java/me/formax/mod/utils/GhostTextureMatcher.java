@@ -0,0 +1,379 @@
+package me.formax.mod.utils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides whether a skull texture is a ghost texture by comparing it with known ghost skins.
+ * Reference skins are compiled into a GhostFingerprintIndex as soon as they are available locally.
+ * Reads skins from the local skin cache and decodes them, so it must only be used off the
+ * client thread. Safe to call from several worker threads at once.
+ */
+public class GhostTextureMatcher {
+
+  // Ghost texture IDs to check against (known ghost head texture hashes)
+  // More can be listed in ghosthunt/references.txt, one per line
+  public static final List<String> GHOST_TEXTURE_IDS = Arrays.asList(
+          "9c2a977b735e1685a2b75760664315fbaa7e3bbae215889bf767b53035435800",
+          "426ebbe5769ae1524a3d3091984a534da04956c089d146ecab6f2d9304fb617"
+  );
+
+  // Minimum time between attempts to load reference skins that were not downloaded yet
+  private static final long REFERENCE_RETRY_INTERVAL = 10000;
+
+  // Number of distinct texture property values whose texture ID is remembered
+  private static final int PARSED_PROPERTY_CACHE_SIZE = 4096;
+
+  // Directory holding downloaded skins as [first 2 chars]/[texture_id]
+  private final File skinsDir;
+
+  // Optional text file listing extra ghost texture IDs, one per line
+  private final File referencesFile;
+
+  // Compiled region fingerprints of the ghost reference skins
+  private final GhostFingerprintIndex fingerprints = new GhostFingerprintIndex();
+
+  // Reference texture IDs whose skins could not be loaded yet
+  private final Set<String> pendingReferenceIds = ConcurrentHashMap.newKeySet();
+  private final Object referenceLock = new Object();
+  private volatile long lastReferenceAttempt = 0;
+
+  // Changes whenever reference skins are added, so callers can check earlier non-ghost verdicts again
+  private volatile int referenceVersion = 0;
+  private boolean referencesFileRead = false;
+
+  // Verdicts of textures that were already compared
+  private final VerdictCache verdictCache;
+
+  // Texture IDs of property values that were already parsed
+  private final TexturePropertyParser propertyParser = new TexturePropertyParser(PARSED_PROPERTY_CACHE_SIZE);
+
+  // Time spent reading and decoding skin files
+  private final MetricsRegistry.Histogram decodeLatency;
+
+  /**
+   * @param skinsDir Directory holding downloaded skins
+   * @param ghostTextureIds Built-in ghost texture IDs (known ghost head texture hashes)
+   * @param referencesFile Text file with additional ghost texture IDs, may not exist
+   * @param verdictCache Verdicts of textures that were already compared
+   * @param decodeLatency Receives the time each skin file took to load, in microseconds
+   */
+  public GhostTextureMatcher(File skinsDir, List<String> ghostTextureIds, File referencesFile, VerdictCache verdictCache,
+                             MetricsRegistry.Histogram decodeLatency) {
+    this.skinsDir = skinsDir;
+    this.referencesFile = referencesFile;
+    this.verdictCache = verdictCache;
+    this.decodeLatency = decodeLatency;
+    this.pendingReferenceIds.addAll(ghostTextureIds);
+  }
+
+  /**
+   * @return The number of reference skins compiled into the fingerprint index
+   */
+  public int getReferenceCount() {
+    return fingerprints.size();
+  }
+
+  /**
+   * @return A counter that changes whenever reference skins are added to the fingerprint index
+   */
+  public int getReferenceVersion() {
+    return referenceVersion;
+  }
+
+  /**
+   * Checks whether any of a skull's texture properties is a ghost texture.
+   * @param propertyValues The Base64 values of the profile's "textures" properties
+   * @param log Receives detailed debug information, or null for no output
+   * @return true if a property matches a known ghost texture, false if none does,
+   *         null if no property matches and at least one could not be decided yet
+   */
+  public Boolean isGhost(List<String> propertyValues, List<String> log) {
+    Boolean isGhost = false;
+    for (String base64Value : propertyValues) {
+      Boolean verdict = isGhostProperty(base64Value, log);
+      if (verdict == null) {
+        if (isGhost != null && !isGhost) {
+          isGhost = null;
+        }
+      } else if (verdict) {
+        isGhost = true;
+      }
+    }
+    return isGhost;
+  }
+
+  /**
+   * Checks whether a single texture property is a ghost texture.
+   * @param base64Value The Base64 encoded texture property value
+   * @param log Receives detailed debug information, or null for no output
+   * @return true if the texture matches a known ghost texture, false if it does not, null if it cannot be decided yet
+   */
+  private Boolean isGhostProperty(String base64Value, List<String> log) {
+    if (log != null) {
+      // Only debug output needs the whole JSON
+      try {
+        log(log, "§6Decoded JSON: §f" + new String(Base64.getMimeDecoder().decode(base64Value), StandardCharsets.UTF_8));
+      } catch (IllegalArgumentException e) {
+        log(log, "§cCouldn't decode base64: " + e.getMessage());
+      }
+      log(log, "§a§lTexture URL: §f" + TexturePropertyParser.parseSkinUrl(base64Value));
+    }
+
+    // Texture ID from the URL in textures.SKIN.url (the hash at the end)
+    String textureId = propertyParser.getTextureId(base64Value);
+    if (textureId == null) {
+      return false;
+    }
+    log(log, "§eTexture ID: §f" + textureId);
+    return isGhostTexture(textureId, log);
+  }
+
+  /**
+   * Collects the texture IDs of a skull's texture properties, for grouping skulls by texture.
+   * @param propertyValues The Base64 values of the profile's "textures" properties
+   * @return The texture IDs of the properties that have one
+   */
+  public List<String> getTextureIds(List<String> propertyValues) {
+    List<String> ids = new ArrayList<>(propertyValues.size());
+    for (String base64Value : propertyValues) {
+      String textureId = propertyParser.getTextureId(base64Value);
+      if (textureId != null) {
+        ids.add(textureId);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Checks whether a texture is a ghost texture, reusing the verdict of an earlier comparison.
+   * @param textureId The texture ID (hash)
+   * @param log Receives detailed debug information, or null for no output
+   * @return true if the texture matches a known ghost texture, false if it does not,
+   *         null if it cannot be decided yet because the texture or the reference skins are not available
+   */
+  public Boolean isGhostTexture(String textureId, List<String> log) {
+    // Reuse the verdict if this texture was compared before
+    Boolean cached = verdictCache.get(textureId);
+    if (cached != null) {
+      log(log, "§eCached verdict: §f" + (cached ? "ghost" : "not a ghost"));
+      return cached;
+    }
+
+    log(log, "§eChecking texture similarity...");
+
+    // Compare texture against known ghost textures
+    Boolean verdict = isGhostTextureByImage(textureId, log);
+    if (verdict == null) {
+      // Not cached, so the texture is compared again on the next attempt
+      return null;
+    }
+    verdictCache.put(textureId, verdict);
+    return verdict;
+  }
+
+  /**
+   * Extracts the texture ID from a Minecraft texture URL.
+   * URL format: http://textures.minecraft.net/texture/[ID]
+   * @param textureUrl The full texture URL
+   * @return The texture ID (hash), or null if extraction fails
+   */
+  public static String extractTextureId(String textureUrl) {
+    if (textureUrl == null) {
+      return null;
+    }
+
+    // URL format: http://textures.minecraft.net/texture/[ID]
+    // Extract the part after the last slash
+    int lastSlash = textureUrl.lastIndexOf('/');
+    if (lastSlash != -1 && lastSlash < textureUrl.length() - 1) {
+      return textureUrl.substring(lastSlash + 1);
+    }
+
+    return null;
+  }
+
+  /**
+   * Checks if the given texture ID matches any ghost texture by comparing image pixels.
+   * Loads the texture from local storage and looks its region up in the fingerprint index.
+   * @param textureId The texture ID to check
+   * @param log Receives detailed debug information, or null for no output
+   * @return true if texture matches a known ghost texture, false if it does not,
+   *         null if it could not be decided because a texture is not available yet
+   */
+  private Boolean isGhostTextureByImage(String textureId, List<String> log) {
+    if (textureId == null) {
+      return null;
+    }
+
+    try {
+      loadPendingReferences();
+      if (fingerprints.size() == 0) {
+        log(log, "§cNo ghost textures available for comparison");
+        return null;
+      }
+
+      // Load the texture to check from local storage
+      BufferedImage checkTexture = loadLocalTexture(textureId, log);
+      if (checkTexture == null) {
+        log(log, "§cFailed to load texture for comparison");
+        return null;
+      }
+
+      int[] region = GhostFingerprintIndex.extractRegion(checkTexture);
+      if (region == null) {
+        log(log, "§cTexture too small for region comparison");
+        return false;
+      }
+
+      // Compare the top portion of the textures (where ghost features are)
+      String match = fingerprints.find(region);
+      if (match != null) {
+        log(log, "§aTexture region matches ghost texture! §f(" + match + ")");
+        return true;
+      }
+
+      log(log, "§7Texture region does not match any of " + fingerprints.size() + " ghost textures.");
+      return false;
+
+    } catch (Exception e) {
+      log(log, "§cError during texture comparison: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Compiles reference skins that were not available on earlier attempts into the fingerprint index.
+   * Runs at most once per retry interval, and only on one worker at a time. Workers arriving while
+   * a load is in progress wait for it, so none of them compares against a half-built index.
+   * Known non-ghost verdicts are dropped when the set of references changes, since they may now match.
+   */
+  private void loadPendingReferences() {
+    if (System.currentTimeMillis() - lastReferenceAttempt < REFERENCE_RETRY_INTERVAL) {
+      return;
+    }
+
+    synchronized (referenceLock) {
+      // Another worker may have finished a load while this one waited
+      if (System.currentTimeMillis() - lastReferenceAttempt < REFERENCE_RETRY_INTERVAL) {
+        return;
+      }
+      loadReferences();
+      lastReferenceAttempt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Reads the references file once and compiles every pending reference skin that is available locally.
+   */
+  private void loadReferences() {
+    if (!referencesFileRead) {
+      referencesFileRead = true;
+      pendingReferenceIds.addAll(readReferenceIds(referencesFile));
+    }
+
+    boolean added = false;
+    for (String id : pendingReferenceIds) {
+      BufferedImage image = loadLocalTexture(id, null);
+      if (image == null) {
+        continue;
+      }
+
+      int[] region = GhostFingerprintIndex.extractRegion(image);
+      if (region != null && fingerprints.add(id, region)) {
+        added = true;
+      }
+      pendingReferenceIds.remove(id);
+    }
+
+    if (added) {
+      verdictCache.setReferenceSignature(fingerprints.signature());
+      referenceVersion++;
+    }
+  }
+
+  /**
+   * Reads additional ghost texture IDs, one per line. Empty lines and lines starting with # are skipped.
+   * @param file The references file
+   * @return The texture IDs, empty if the file does not exist
+   */
+  private static List<String> readReferenceIds(File file) {
+    List<String> ids = new ArrayList<>();
+    if (file == null || !file.isFile()) {
+      return ids;
+    }
+
+    try {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        String id = line.trim();
+        if (!id.isEmpty() && !id.startsWith("#")) {
+          ids.add(id);
+        }
+      }
+    } catch (IOException e) {
+      // Unreadable file, only the built-in references are used
+    }
+    return ids;
+  }
+
+  /**
+   * Loads a texture from the local assets folder.
+   * Path format: assets/skins/[first 2 chars]/[texture_id]
+   * @param textureId The texture ID to load
+   * @param log Receives detailed debug information, or null for no output
+   * @return The loaded BufferedImage, or null if loading fails
+   */
+  public BufferedImage loadLocalTexture(String textureId, List<String> log) {
+    if (textureId == null || textureId.length() < 2) {
+      return null;
+    }
+
+    try {
+      // Build path: assets/skins/[first 2 chars]/[texture_id]
+      // The first 2 chars are used as a subdirectory for organization
+      String firstTwoChars = textureId.substring(0, 2);
+      File textureFile = new File(skinsDir, firstTwoChars + "/" + textureId);
+
+      log(log, "§eAttempting to load: §f" + textureFile.getAbsolutePath());
+
+      // Check if file exists
+      if (!textureFile.exists()) {
+        log(log, "§cTexture file not found: " + textureFile.getName());
+        return null;
+      }
+
+      // Load the image using ImageIO
+      long start = System.nanoTime();
+      BufferedImage image = ImageIO.read(textureFile);
+      decodeLatency.recordSince(start);
+
+      if (image != null) {
+        log(log, "§aSuccessfully loaded texture: §f" + textureFile.getName());
+      } else {
+        log(log, "§cFailed to read image file");
+      }
+
+      return image;
+
+    } catch (Exception e) {
+      log(log, "§cFailed to load texture: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static void log(List<String> log, String message) {
+    if (log != null) {
+      log.add(message);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package me.formax.mod.utils;
+
+/**
+ * FIFO of heads waiting for a texture check, each with the time it becomes ready.
+ * Every head gets the same delay, so heads become ready in the order they were queued and the
+ * client tick only ever has to look at the front of the queue: it takes heads off as long as its
+ * work budget lasts and resumes from the same place on the next tick.
+ * <p>
+ * A map from head to ready time answers membership and removal in O(1). Removed heads leave a
+ * stale entry in the ring, which is recognised and skipped when it reaches the front.
+ * Not thread-safe.
+ */
+public class HeadCheckQueue {
+
+  private static final int MIN_CAPACITY = 16;
+
+  // Queued heads -> ready time, the authority on what is queued
+  private final LongLongHashMap readyTimes = new LongLongHashMap();
+
+  // Ring of queued entries in ready order, may contain stale entries of removed heads
+  private long[] keys = new long[MIN_CAPACITY];
+  private long[] times = new long[MIN_CAPACITY];
+  private int head = 0;
+  private int count = 0;
+
+  /**
+   * @return The number of heads queued, stale ring entries not included
+   */
+  public int size() {
+    return readyTimes.size();
+  }
+
+  public boolean isEmpty() {
+    return readyTimes.isEmpty();
+  }
+
+  public boolean contains(long key) {
+    return readyTimes.containsKey(key);
+  }
+
+  /**
+   * Queues a head. Ready times must not decrease between calls.
+   * @param key The packed position of the head
+   * @param readyTime The time in milliseconds from which the head may be checked
+   * @return false if the head was already queued
+   */
+  public boolean offer(long key, long readyTime) {
+    if (readyTimes.containsKey(key)) {
+      return false;
+    }
+    readyTimes.put(key, readyTime);
+
+    if (count == keys.length) {
+      grow();
+    }
+    int tail = (head + count) & (keys.length - 1);
+    keys[tail] = key;
+    times[tail] = readyTime;
+    count++;
+    return true;
+  }
+
+  /**
+   * Removes a head from the queue. Its ring entry is dropped once it reaches the front.
+   * @param key The packed position of the head
+   * @return true if the head was queued
+   */
+  public boolean remove(long key) {
+    return readyTimes.remove(key);
+  }
+
+  public void clear() {
+    readyTimes.clear();
+    if (keys.length > MIN_CAPACITY * 4) {
+      keys = new long[MIN_CAPACITY];
+      times = new long[MIN_CAPACITY];
+    }
+    head = 0;
+    count = 0;
+  }
+
+  /**
+   * Looks at the head at the front of the queue if it is ready.
+   * @param now The current time in milliseconds
+   * @return The packed position of the head, or BlockKeys.NONE if the queue is empty or the front is not ready yet
+   */
+  public long peekReady(long now) {
+    skipStale();
+    if (count == 0 || times[head] > now) {
+      return BlockKeys.NONE;
+    }
+    return keys[head];
+  }
+
+  /**
+   * Counts the heads that are ready, looking no further than a limit.
+   * @param now The current time in milliseconds
+   * @param limit The count at which to stop looking
+   * @return The number of ready heads, at most limit
+   */
+  public int countReady(long now, int limit) {
+    int ready = 0;
+    int mask = keys.length - 1;
+    for (int i = 0; i < count && ready < limit; i++) {
+      int index = (head + i) & mask;
+      if (times[index] > now) {
+        break;
+      }
+      // Stale entries do not count
+      if (readyTimes.get(keys[index], Long.MIN_VALUE) == times[index]) {
+        ready++;
+      }
+    }
+    return ready;
+  }
+
+  /**
+   * Removes the head at the front of the queue, the one peekReady returned.
+   */
+  public void poll() {
+    skipStale();
+    if (count == 0) {
+      return;
+    }
+    readyTimes.remove(keys[head]);
+    advance();
+  }
+
+  /**
+   * Starts an iteration over the queued heads, in no particular order.
+   * @return The first slot, or -1 if the queue is empty
+   * @see LongLongHashMap#firstSlot()
+   */
+  public int firstSlot() {
+    return readyTimes.firstSlot();
+  }
+
+  public int nextSlot(int slot) {
+    return readyTimes.nextSlot(slot);
+  }
+
+  public long keyAt(int slot) {
+    return readyTimes.keyAt(slot);
+  }
+
+  /**
+   * Drops front entries of heads that were removed, or removed and queued again later.
+   */
+  private void skipStale() {
+    while (count > 0 && readyTimes.get(keys[head], Long.MIN_VALUE) != times[head]) {
+      advance();
+    }
+  }
+
+  private void advance() {
+    head = (head + 1) & (keys.length - 1);
+    count--;
+  }
+
+  private void grow() {
+    // Unroll the ring into the front of the larger arrays
+    long[] newKeys = new long[keys.length * 2];
+    long[] newTimes = new long[keys.length * 2];
+    int firstPart = Math.min(count, keys.length - head);
+    System.arraycopy(keys, head, newKeys, 0, firstPart);
+    System.arraycopy(times, head, newTimes, 0, firstPart);
+    System.arraycopy(keys, 0, newKeys, firstPart, count - firstPart);
+    System.arraycopy(times, 0, newTimes, firstPart, count - firstPart);
+    keys = newKeys;
+    times = newTimes;
+    head = 0;
+  }
+}
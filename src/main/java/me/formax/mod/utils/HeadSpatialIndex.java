@@ -0,0 +1,222 @@
+package me.formax.mod.utils;
+
+import java.util.Arrays;
+
+/**
+ * Block-keyed hash grid of ghost head positions used to match particles to heads in O(1).
+ * Written on the client thread and read lock-free from the netty thread: changes are collected in
+ * a working set and publish() turns them into a fresh open-addressing table, so a reader always sees
+ * a complete, consistent set. Publishing once per tick rather than on every change keeps a restore or
+ * a burst of verdicts linear in the number of heads.
+ * Each table carries the bounding box of its heads, so particles far from every head are
+ * rejected with a few comparisons before any hashing.
+ */
+public class HeadSpatialIndex {
+
+  // Particles within this distance of a head center belong to the head (0.5 blocks, squared)
+  private static final double MATCH_DISTANCE_SQ = 0.5 * 0.5;
+
+  /**
+   * Open-addressing table of head keys plus the block bounds of the heads in it. Never modified once published.
+   */
+  private static final class Snapshot {
+    final long[] table;
+    final int minX;
+    final int minY;
+    final int minZ;
+    final int maxX;
+    final int maxY;
+    final int maxZ;
+
+    Snapshot(long[] table) {
+      this.table = table;
+      int lowX = Integer.MAX_VALUE;
+      int lowY = Integer.MAX_VALUE;
+      int lowZ = Integer.MAX_VALUE;
+      int highX = Integer.MIN_VALUE;
+      int highY = Integer.MIN_VALUE;
+      int highZ = Integer.MIN_VALUE;
+      for (long key : table) {
+        if (key != BlockKeys.NONE) {
+          lowX = Math.min(lowX, BlockKeys.x(key));
+          lowY = Math.min(lowY, BlockKeys.y(key));
+          lowZ = Math.min(lowZ, BlockKeys.z(key));
+          highX = Math.max(highX, BlockKeys.x(key));
+          highY = Math.max(highY, BlockKeys.y(key));
+          highZ = Math.max(highZ, BlockKeys.z(key));
+        }
+      }
+      this.minX = lowX;
+      this.minY = lowY;
+      this.minZ = lowZ;
+      this.maxX = highX;
+      this.maxY = highY;
+      this.maxZ = highZ;
+    }
+  }
+
+  private static final Snapshot EMPTY = new Snapshot(newTable(0));
+
+  // Current snapshot, replaced as a whole by publish()
+  private volatile Snapshot snapshot = EMPTY;
+
+  // Heads as changed by the client thread, findHead only sees them once published
+  private final LongHashSet heads = new LongHashSet();
+  private boolean changed = false;
+
+  /**
+   * Adds a head to the index. Particles are matched to it once the change is published.
+   * @param key The packed position of the head
+   * @return true if the head was not indexed yet
+   */
+  public boolean add(long key) {
+    if (!heads.add(key)) {
+      return false;
+    }
+    changed = true;
+    return true;
+  }
+
+  /**
+   * Removes a head from the index. Particles are no longer matched to it once the change is published.
+   * @param key The packed position of the head
+   * @return true if the head was indexed
+   */
+  public boolean remove(long key) {
+    if (!heads.remove(key)) {
+      return false;
+    }
+    changed = true;
+    return true;
+  }
+
+  /**
+   * Makes the changes since the last publish visible to findHead, in a single new table.
+   * @return true if there were changes to publish
+   */
+  public boolean publish() {
+    if (!changed) {
+      return false;
+    }
+    changed = false;
+    if (heads.isEmpty()) {
+      snapshot = EMPTY;
+      return true;
+    }
+
+    long[] next = newTable(heads.size());
+    for (int slot = heads.firstSlot(); slot >= 0; slot = heads.nextSlot(slot)) {
+      insert(next, heads.keyAt(slot));
+    }
+    snapshot = new Snapshot(next);
+    return true;
+  }
+
+  /**
+   * Removes all heads, unlike other changes this takes effect right away.
+   */
+  public void clear() {
+    heads.clear();
+    changed = false;
+    snapshot = EMPTY;
+  }
+
+  /**
+   * @return The number of heads, including changes not published yet
+   */
+  public int size() {
+    return heads.size();
+  }
+
+  /**
+   * @return true if the head is indexed, including changes not published yet
+   */
+  public boolean contains(long key) {
+    return heads.contains(key);
+  }
+
+  /**
+   * Finds the head a particle belongs to.
+   * Only the block containing the particle (and its neighbour when the particle sits exactly
+   * on a block face) can hold a head center within range, so at most a few probes are needed.
+   * Particles outside the bounding box of all heads are rejected without probing.
+   * Allocates nothing.
+   * @param x Particle X coordinate
+   * @param y Particle Y coordinate
+   * @param z Particle Z coordinate
+   * @return The packed position of the matching head, or BlockKeys.NONE if there is none
+   */
+  public long findHead(double x, double y, double z) {
+    Snapshot current = snapshot;
+
+    // A matching particle lies within the head's block, so outside the heads' bounds nothing can match
+    int bx = floor(x);
+    int by = floor(y);
+    int bz = floor(z);
+    if (bx < current.minX - 1 || bx > current.maxX + 1
+            || by < current.minY - 1 || by > current.maxY + 1
+            || bz < current.minZ - 1 || bz > current.maxZ + 1) {
+      return BlockKeys.NONE;
+    }
+
+    int lowX = x == bx ? bx - 1 : bx;
+    int lowY = y == by ? by - 1 : by;
+    int lowZ = z == bz ? bz - 1 : bz;
+
+    for (int cx = lowX; cx <= bx; cx++) {
+      for (int cy = lowY; cy <= by; cy++) {
+        for (int cz = lowZ; cz <= bz; cz++) {
+          long key = BlockKeys.pack(cx, cy, cz);
+          if (indexOf(current.table, key) < 0) {
+            continue;
+          }
+          double dx = cx + 0.5 - x;
+          double dy = cy + 0.5 - y;
+          double dz = cz + 0.5 - z;
+          if (dx * dx + dy * dy + dz * dz <= MATCH_DISTANCE_SQ) {
+            return key;
+          }
+        }
+      }
+    }
+    return BlockKeys.NONE;
+  }
+
+  private static int floor(double value) {
+    int i = (int) value;
+    return value < i ? i - 1 : i;
+  }
+
+  private static long[] newTable(int entries) {
+    // Keep the load factor at or below 0.5 so probe chains stay short
+    int capacity = 16;
+    while (capacity < entries * 2) {
+      capacity <<= 1;
+    }
+    long[] table = new long[capacity];
+    Arrays.fill(table, BlockKeys.NONE);
+    return table;
+  }
+
+  private static void insert(long[] table, long key) {
+    int mask = table.length - 1;
+    int i = BlockKeys.hash(key) & mask;
+    while (table[i] != BlockKeys.NONE) {
+      i = (i + 1) & mask;
+    }
+    table[i] = key;
+  }
+
+  private static int indexOf(long[] table, long key) {
+    int mask = table.length - 1;
+    int i = BlockKeys.hash(key) & mask;
+    long current;
+    while ((current = table[i]) != BlockKeys.NONE) {
+      if (current == key) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+}
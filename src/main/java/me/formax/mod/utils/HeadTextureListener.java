@@ -2,22 +2,26 @@ package me.formax.mod.utils;
 
 import com.mojang.authlib.GameProfile;
 import com.mojang.authlib.properties.Property;
-import io.netty.channel.ChannelDuplexHandler;
-import io.netty.channel.ChannelHandlerContext;
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.ActiveRenderInfo;
 import net.minecraft.client.renderer.GlStateManager;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.WorldRenderer;
+import net.minecraft.client.renderer.culling.Frustum;
 import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.init.Blocks;
+import net.minecraft.network.NetworkManager;
 import net.minecraft.network.play.server.S2APacketParticles;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.tileentity.TileEntitySkull;
-import net.minecraft.util.AxisAlignedBB;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.EnumChatFormatting;
 import net.minecraft.util.IChatComponent;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.client.event.ClientChatReceivedEvent;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
 import net.minecraftforge.event.entity.player.PlayerInteractEvent;
@@ -25,9 +29,9 @@ import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent;
 import org.lwjgl.opengl.GL11;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
@@ -39,66 +43,124 @@ public class HeadTextureListener {
   // Debounce timer to prevent multiple rapid clicks
   private long lastClickTime = 0;
 
-  // Ghost texture IDs to check against (known ghost head texture hashes)
-  private static final List<String> GHOST_TEXTURE_IDS = Arrays.asList(
-          "9c2a977b735e1685a2b75760664315fbaa7e3bbae215889bf767b53035435800",
-          "426ebbe5769ae1524a3d3091984a534da04956c089d146ecab6f2d9304fb617"
-  );
+  // Ghost / not-ghost verdicts by texture ID, persisted between sessions
+  private static final VerdictCache verdictCache = new VerdictCache(4096);
+
+  // Hot path metrics, shown with //ghostmetrics and exported to ghosthunt/metrics.csv and metrics.json
+  private static final MetricsRegistry metrics = new MetricsRegistry();
+  private static final MetricsRegistry.Counter particlePackets = metrics.counter("particle_packets");
+  private static final MetricsRegistry.Counter particlesMatched = metrics.counter("particles_matched");
+  private static final MetricsRegistry.Histogram scanTime = metrics.histogram("scan", "us");
+  private static final MetricsRegistry.Histogram queueDepth = metrics.histogram("check_queue", "heads");
+  private static final MetricsRegistry.Histogram renderTime = metrics.histogram("render", "us");
+  private static final MetricsRegistry.Histogram renderVertices = metrics.histogram("render_vertices", "vertices");
+  private static final MetricsRegistry.Histogram routeTime = metrics.histogram("route", "us");
+  private static final MetricsRegistry.Histogram tickWork = metrics.histogram("tick_work", "us");
+
+  // Texture decoding and comparison, run on worker threads off the client thread
+  private static final GhostTextureMatcher textureMatcher = new GhostTextureMatcher(
+          new File(Minecraft.getMinecraft().mcDataDir, "assets/skins"), GhostTextureMatcher.GHOST_TEXTURE_IDS,
+          new File(Minecraft.getMinecraft().mcDataDir, "ghosthunt/references.txt"), verdictCache,
+          metrics.histogram("texture_decode", "us"));
+  private static final TextureClassifier textureClassifier = new TextureClassifier(textureMatcher,
+          verdictCache, new File(Minecraft.getMinecraft().mcDataDir, "ghosthunt/verdicts.dat"), 2,
+          metrics.histogram("texture_batch", "us"));
+
+  // Interval in ticks between saves of the verdict cache (1 minute)
+  private static final int CACHE_SAVE_INTERVAL = 1200;
+
+  // Interval in ticks between metrics exports (1 minute)
+  private static final int METRICS_EXPORT_INTERVAL = 1200;
+
+  static {
+    metrics.gauge("verdict_cache_hits", verdictCache::getHits);
+    metrics.gauge("verdict_cache_misses", verdictCache::getMisses);
+    metrics.gauge("texture_jobs_queued", textureClassifier::getQueuedJobs);
+  }
 
   // Enable/disable debug messages
   private static boolean debugMode = false;
 
-  // Tracks ghost heads with flame particles (timestamp of last flame detected)
-  private static final Map<BlockPos, Long> flameParticlePositions = new HashMap<>();
+  // Connection the particle listener is currently attached to
+  private static NetworkManager registeredNetworkManager = null;
+
+  // World the tracking state belongs to, state is reset when the player changes worlds
+  private static World trackedWorld = null;
+
+  // Periodic radius scan, off by default since chunk and tile entity packets feed discovery
+  private static boolean periodicScanEnabled = false;
+
+  // Nanoseconds of scan and check work the client tick may spend, leftover work continues next tick
+  private static final long DEFAULT_TICK_BUDGET = 1000000;
+  private static long tickBudgetNanos = DEFAULT_TICK_BUDGET;
+
+  // Client ticks since the game started, unlike ticksExisted it does not restart on respawn
+  private static long clientTicks = 0;
+
+  // Dirty chunks of the periodic radius scan, the pass in progress is spread over as many ticks as the budget requires
+  private static final ChunkScanScheduler scanScheduler = new ChunkScanScheduler();
+  private static long scanPlanTick = Long.MIN_VALUE;
+
+  // Minimum interval in ticks between the starts of two periodic scan passes (1 second)
+  private static final int SCAN_INTERVAL = 20;
+
+  // Ghost heads found on the current server world with their claim states, and the all-time total
+  // Stored in ghosthunt/db/[server]/[world].log so they survive restarts and reconnects
+  private static final GhostDatabase database = new GhostDatabase();
 
-  // Set of ghost heads that have been claimed (either clicked or no flames detected when nearby)
-  private static final Set<BlockPos> claimedGhostHeads = new HashSet<>();
+  // Heads of the current world from discovery to claim state, fed by the packet handlers and the client tick
+  private static final HeadTracker tracker = new HeadTracker(new ClientSkulls(), textureClassifier, database,
+          System::currentTimeMillis, HeadTextureListener::sendMessage);
 
-  // Set of ghost heads that are unclaimed (have flames, not clicked yet)
-  private static final Set<BlockPos> unclaimedGhostHeads = new HashSet<>();
+  // Matches flame particles to ghost heads without allocating, most particles are rejected by type
+  private static final FlameParticleFilter flameFilter = new FlameParticleFilter(tracker.getGhostHeadIndex());
 
-  // Timeout duration for flame particle tracking (2 seconds)
-  private static final long FLAME_TIMEOUT = 2000;
+  // Capture of the pipeline's input started with //ghostrecord, null when not recording
+  // Written to from the netty thread as well, see onParticlePacket
+  private static volatile CaptureWriter capture = null;
 
-  // Flag to ensure particle listener is only registered once
-  private static boolean particleListenerRegistered = false;
+  // Overlay colors (semi-transparent) by claim state
+  private static final int OVERLAY_CLAIMED = OverlayGeometry.argb(0.0F, 1.0F, 0.0F, 0.3F);
+  private static final int OVERLAY_UNCLAIMED = OverlayGeometry.argb(1.0F, 0.0F, 0.0F, 0.3F);
+  private static final int OVERLAY_UNKNOWN = OverlayGeometry.argb(1.0F, 1.0F, 0.0F, 0.3F);
 
-  // Cache for loaded ghost textures to avoid reloading from disk
-  private static final Map<String, BufferedImage> ghostTextureCache = new HashMap<>();
+  // Distance in blocks beyond which ghost heads are only drawn as one marker per chunk column
+  private static final double DEFAULT_LOD_DISTANCE = 96.0;
+  private static double lodDistance = DEFAULT_LOD_DISTANCE;
 
-  // Set to store positions of all detected ghost heads
-  private static final Set<BlockPos> ghostHeadPositions = new HashSet<>();
+  // Route through the unclaimed ghost heads, off by default, improved a little every tick
+  private static final RoutePlanner route = new RoutePlanner();
+  private static boolean routeEnabled = false;
+  private static long routeVersion = -1;
 
-  // Queue for heads that need to be checked (with timestamp for delayed checking)
-  private static final Map<BlockPos, Long> headsToCheck = new HashMap<>();
+  // Nanoseconds per tick the route planner may spend, on top of the scan and check budget
+  private static final long ROUTE_BUDGET = 300000;
 
-  // Set to track heads we've already processed to avoid duplicate checks
-  private static final Set<BlockPos> processedHeads = new HashSet<>();
+  // Number of upcoming heads the route line is drawn through
+  private static final int ROUTE_WAYPOINTS = 5;
 
-  // Statistics tracking - total ghost heads found across all time
-  private static int totalGhostsFound = 0;
+  // Reused every frame for the camera-facing quads of mid range heads and far markers
+  private final int[] overlayQuad = new int[OverlayGeometry.INTS_PER_QUAD];
 
-  // Region to compare (top portion of the head texture)
-  // Minecraft head textures are 64x64, the top of the head is typically in the upper portion
-  private static final int COMPARE_START_X = 8;
-  private static final int COMPARE_START_Y = 0;
-  private static final int COMPARE_WIDTH = 16;
-  private static final int COMPARE_HEIGHT = 8;
+  // Overlay vertex data, double buffered: the client tick rebuilds the back buffer when the
+  // head table version changes and then publishes it, the render handler only reads the front one
+  private static OverlayGeometry overlayBack = new OverlayGeometry();
+  private static volatile OverlayGeometry overlayFront = new OverlayGeometry();
+  private static long overlayVersion = -1;
+  // Reused every frame to cull overlays outside the camera view, shares the per-frame clipping helper
+  private Frustum overlayFrustum = null;
+  private OverlayGeometry.Culling overlayCulling = null;
 
-  // Scan radius around player (in blocks)
+  // Scan radius around player (in blocks), only loaded chunks' skull tile entities are visited
   private static final int SCAN_RADIUS = 32;
 
   /**
-   * Registers the particle listener to detect flame particles near ghost heads.
-   * This listener intercepts network packets to detect when flame particles spawn.
-   * Called once during mod initialization or first tick.
+   * Registers the packet listener to detect flame particles near ghost heads and to discover
+   * skulls as chunk, block and tile entity packets arrive.
+   * Called on the first tick of every new connection. Skulls that were already loaded before
+   * the listener was attached are picked up with a single sweep of the loaded tile entities.
    */
   private void registerParticleListener() {
-    // Check if already registered to prevent duplicate listeners
-    if (particleListenerRegistered) {
-      return;
-    }
-
     Minecraft mc = Minecraft.getMinecraft();
 
     // Ensure network handler is available
@@ -106,67 +168,223 @@ public class HeadTextureListener {
       return;
     }
 
+    NetworkManager networkManager = mc.getNetHandler().getNetworkManager();
+
+    // Check if already registered on this connection to prevent duplicate listeners
+    if (networkManager == registeredNetworkManager) {
+      return;
+    }
+
     try {
       // Add custom handler to the network pipeline
-      mc.getNetHandler().getNetworkManager().channel()
-              .pipeline()
-              .addBefore("packet_handler", "particle_listener", new ChannelDuplexHandler() {
-                @Override
-                public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                  // Check if the packet is a particle packet
-                  if (msg instanceof S2APacketParticles) {
-                    S2APacketParticles packet = (S2APacketParticles) msg;
-
-                    // Check if it's a flame particle (unclaimed ghost heads spawn flames)
-                    String particleName = packet.getParticleType().getParticleName();
-                    if (particleName.equals("flame") || particleName.equals("lava")) {
-                      double x = packet.getXCoordinate();
-                      double y = packet.getYCoordinate();
-                      double z = packet.getZCoordinate();
-
-                      // Check if this flame is near any known ghost head
-                      BlockPos particlePos = new BlockPos(x, y, z);
-
-                      for (BlockPos ghostPos : ghostHeadPositions) {
-                        // Calculate 3D distance between flame and ghost head
-                        double distance = Math.sqrt(
-                                Math.pow(ghostPos.getX() + 0.5 - x, 2) +
-                                        Math.pow(ghostPos.getY() + 0.5 - y, 2) +
-                                        Math.pow(ghostPos.getZ() + 0.5 - z, 2)
-                        );
-
-                        // If flame is within 0.5 blocks of ghost head, mark it
-                        if (distance <= 0.5) {
-                          flameParticlePositions.put(ghostPos, System.currentTimeMillis());
-                          if (debugMode) {
-                            sendMessage("§7[DEBUG] Flame detected at ghost head: " + ghostPos);
-                          }
-                        }
-                      }
-                    }
-                  }
-                  super.channelRead(ctx, msg);
-                }
-              });
-
-      particleListenerRegistered = true;
-      sendMessage("§aParticle listener registered successfully!");
+      if (networkManager.channel().pipeline().get(GhostPacketHandler.NAME) == null) {
+        networkManager.channel()
+                .pipeline()
+                .addBefore("packet_handler", GhostPacketHandler.NAME, new GhostPacketHandler(this));
+      }
+
+      registeredNetworkManager = networkManager;
+      if (debugMode) {
+        sendMessage("§7[DEBUG] Particle listener registered");
+      }
     } catch (Exception e) {
       sendMessage("§cFailed to register particle listener: " + e.getMessage());
+      return;
+    }
+
+    // Pick up skulls from chunks that arrived before the listener was attached
+    long start = System.nanoTime();
+    SkullScanner.scanLoaded(mc.theWorld, this::queueHead);
+    scanTime.recordSince(start);
+  }
+
+  /**
+   * Handles a particle packet on the netty thread.
+   * Publishes a flame event for the ghost head a flame or lava particle is inside of.
+   * Never touches the tracking collections, those are only updated by the client tick.
+   * Allocates nothing, this runs for every particle packet the server sends.
+   * @param packet The particle packet received from the server
+   */
+  void onParticlePacket(S2APacketParticles packet) {
+    particlePackets.increment();
+
+    CaptureWriter recording = capture;
+    if (recording != null) {
+      recording.particle(packet.getParticleType().ordinal(),
+              packet.getXCoordinate(), packet.getYCoordinate(), packet.getZCoordinate());
+    }
+
+    // Look up the ghost head this flame is in (within 0.5 blocks of its center)
+    // Unclaimed ghost heads spawn flame and lava particles, any other type is rejected first
+    long ghostKey = flameFilter.match(packet.getParticleType(),
+            packet.getXCoordinate(), packet.getYCoordinate(), packet.getZCoordinate());
+    if (ghostKey != BlockKeys.NONE) {
+      particlesMatched.increment();
+      tracker.getFlameEvents().offer(ghostKey);
     }
   }
 
   /**
-   * Checks if a ghost head position has flame particles nearby (within timeout period).
-   * @param pos The block position to check
-   * @return true if flames were detected recently, false otherwise
+   * Resyncs tracking for a chunk after a chunk packet was applied on the client thread.
+   * Skulls in the chunk are queued for checking, tracked heads that are gone are evicted.
+   * An unloaded chunk evicts every head inside it.
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
    */
-  private boolean hasFlameParticlesNearby(BlockPos pos) {
-    if (flameParticlePositions.containsKey(pos)) {
-      long lastFlameTime = flameParticlePositions.get(pos);
-      return System.currentTimeMillis() - lastFlameTime < FLAME_TIMEOUT;
+  void onChunkChanged(int chunkX, int chunkZ) {
+    Minecraft mc = Minecraft.getMinecraft();
+    if (mc.theWorld == null) {
+      return;
+    }
+
+    // Evict known heads in this chunk that no longer have a skull tile entity
+    // Heads in a loaded chunk are really gone, heads in an unloaded one are only out of range
+    Chunk chunk = mc.theWorld.getChunkFromChunkCoords(chunkX, chunkZ);
+    boolean unloaded = chunk.isEmpty();
+    if (capture != null) {
+      recordChunk(chunk, chunkX, chunkZ, unloaded);
+    }
+    tracker.chunkChanged(chunkX, chunkZ, unloaded);
+
+    if (unloaded) {
+      scanScheduler.markDirty(chunkX, chunkZ);
+      return;
     }
-    return false;
+
+    long start = System.nanoTime();
+    SkullScanner.scanChunk(mc.theWorld, chunkX, chunkZ, this::queueHead);
+    scanTime.recordSince(start);
+    scanScheduler.markScanned(chunkX, chunkZ);
+  }
+
+  /**
+   * Handles a single block change after it was applied on the client thread.
+   * A skull is queued for checking, anything else evicts the position.
+   * @param pos The changed position
+   * @param block The new block at the position
+   */
+  void onBlockChanged(BlockPos pos, Block block) {
+    // Packets queued before a disconnect may still arrive after the world is gone
+    if (Minecraft.getMinecraft().theWorld == null) {
+      return;
+    }
+    if (capture != null) {
+      capture.block(pos.toLong(), block == Blocks.skull);
+    }
+    scanScheduler.markDirty(pos.getX() >> 4, pos.getZ() >> 4);
+    tracker.blockChanged(pos.toLong(), block == Blocks.skull);
+  }
+
+  /**
+   * Handles a skull tile entity update after it was applied on the client thread.
+   * The skull profile may have changed, so the head is checked again. A ghost head is only checked
+   * again when its texture differs from the one it was seen with, and keeps its claim state until
+   * the new verdict arrives.
+   * @param pos The position of the updated skull
+   */
+  void onSkullUpdated(BlockPos pos) {
+    World world = Minecraft.getMinecraft().theWorld;
+    if (world == null) {
+      return;
+    }
+    List<String> properties = texturePropertiesAt(world, pos);
+    if (capture != null) {
+      capture.skull(pos.toLong(), properties);
+    }
+    scanScheduler.markDirty(pos.getX() >> 4, pos.getZ() >> 4);
+    tracker.skullUpdated(pos.toLong(), properties);
+  }
+
+  /**
+   * Adds a skull found by a scan to the tracker's check queue unless it was already processed or queued.
+   * @param pos The position of the skull
+   */
+  private void queueHead(BlockPos pos) {
+    tracker.queueHead(pos.toLong());
+  }
+
+  /**
+   * Clears all per-world tracking state. The all-time total is kept.
+   */
+  private void resetTracking() {
+    tracker.clear();
+    scanScheduler.clear();
+    route.clear();
+    routeVersion = -1;
+  }
+
+  /**
+   * Starts a capture of the pipeline's input in ghosthunt/captures.
+   * Skulls that are already loaded are recorded first, so a replay starts from the same world.
+   */
+  private void startRecording() {
+    Minecraft mc = Minecraft.getMinecraft();
+    String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    File file = new File(mc.mcDataDir, "ghosthunt/captures/capture-" + name + ".ghc");
+    try {
+      capture = new CaptureWriter(file);
+      tracker.setCapture(capture);
+    } catch (IOException e) {
+      sendMessage("§cCouldn't start recording: " + e.getMessage());
+      return;
+    }
+
+    for (TileEntity te : mc.theWorld.loadedTileEntityList) {
+      if (te instanceof TileEntitySkull) {
+        capture.skull(te.getPos().toLong(), texturePropertiesAt(mc.theWorld, te.getPos()));
+      }
+    }
+    sendMessage("§aRecording to §f" + file.getName());
+  }
+
+  private void stopRecording() {
+    CaptureWriter recording = capture;
+    capture = null;
+    tracker.setCapture(null);
+    try {
+      recording.close();
+      sendMessage("§eRecording stopped: §f" + recording.getEventCount() + " events, "
+              + recording.getSize() / 1024 + " KB in " + recording.getFile().getName());
+    } catch (IOException e) {
+      sendMessage("§cRecording failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Records a chunk load or unload with the skulls of a loaded chunk.
+   */
+  private void recordChunk(Chunk chunk, int chunkX, int chunkZ, boolean unloaded) {
+    List<Long> positions = new ArrayList<>();
+    List<List<String>> properties = new ArrayList<>();
+    if (!unloaded) {
+      for (TileEntity te : chunk.getTileEntityMap().values()) {
+        if (te instanceof TileEntitySkull) {
+          positions.add(te.getPos().toLong());
+          properties.add(texturePropertiesAt(chunk.getWorld(), te.getPos()));
+        }
+      }
+    }
+    long[] packed = new long[positions.size()];
+    for (int i = 0; i < packed.length; i++) {
+      packed[i] = positions.get(i);
+    }
+    capture.chunk(chunkX, chunkZ, !unloaded, packed, properties);
+  }
+
+  /**
+   * @param world The world the skull is in
+   * @param pos The position of the skull
+   * @return The Base64 values of the skull profile's "textures" properties, empty if it has none
+   */
+  private static List<String> texturePropertiesAt(World world, BlockPos pos) {
+    List<String> values = new ArrayList<>();
+    TileEntity te = world.getTileEntity(pos);
+    if (te instanceof TileEntitySkull && ((TileEntitySkull) te).getPlayerProfile() != null) {
+      for (Property property : ((TileEntitySkull) te).getPlayerProfile().getProperties().get("textures")) {
+        values.add(property.getValue());
+      }
+    }
+    return values;
   }
 
   /**
@@ -206,15 +424,15 @@ public class HeadTextureListener {
     if (block == Blocks.skull) {
       if (debugMode) {
         sendMessage("§a§lThis is a HEAD/SKULL block!");
+        describeSkull(mc.theWorld, blockPos);
       }
-      checkHeadTexture(blockPos, debugMode);
-
-      // Mark as claimed when player right-clicks a ghost head
-      if (ghostHeadPositions.contains(blockPos)) {
-        claimedGhostHeads.add(blockPos);
-        unclaimedGhostHeads.remove(blockPos); // Remove from unclaimed if it was there
-        sendMessage("§a§lGhost head marked as CLAIMED!");
+      long key = blockPos.toLong();
+      if (capture != null) {
+        capture.click(key);
       }
+
+      // Checks the head right away and marks a ghost head claimed, now or once its verdict arrives
+      tracker.click(key, debugMode);
     }
 
     if (debugMode) {
@@ -223,9 +441,12 @@ public class HeadTextureListener {
   }
 
   /**
-   * Scans for skull blocks around the player periodically.
-   * Runs every tick but only performs scanning every 20 ticks (1 second).
-   * Also cleans up old flame particle data and registers the particle listener.
+   * Runs the tracker's tick (saved ghosts, flames, worker verdicts, claim inference) and keeps the
+   * overlay and route up to date. Then checks queued skulls and continues the periodic scan until the
+   * tick budget (DEFAULT_TICK_BUDGET unless changed with //ghostbudget) is used up. Both resume where the
+   * previous tick stopped: the check queue keeps unchecked heads in front and the scan scheduler keeps
+   * its place in the current pass.
+   * Also registers the particle listener and runs the periodic cache saves and metrics exports.
    */
   @SubscribeEvent
   public void onClientTick(TickEvent.ClientTickEvent event) {
@@ -234,409 +455,194 @@ public class HeadTextureListener {
       return;
     }
 
+    clientTicks++;
+
     Minecraft mc = Minecraft.getMinecraft();
     if (mc.theWorld == null || mc.thePlayer == null) {
       return;
     }
 
-    // Register particle listener on first tick
-    if (!particleListenerRegistered) {
-      registerParticleListener();
+    // Drop state from the previous world when the player changes worlds
+    if (mc.theWorld != trackedWorld) {
+      // A capture covers a single world
+      if (capture != null) {
+        stopRecording();
+      }
+      textureClassifier.saveCache();
+      resetTracking();
+      trackedWorld = mc.theWorld;
+      registeredNetworkManager = null;
+      database.open(getDatabaseFile(mc));
     }
 
-    // Clean up old flame positions (remove entries older than timeout)
-    flameParticlePositions.entrySet().removeIf(entry ->
-            System.currentTimeMillis() - entry.getValue() > FLAME_TIMEOUT
-    );
-
-    // Only scan every 20 ticks (1 second) to reduce performance impact
-    if (mc.thePlayer.ticksExisted % 20 != 0) {
-      return;
+    if (capture != null) {
+      capture.tick(mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ);
     }
 
-    // Get player position for scanning
-    BlockPos playerPos = mc.thePlayer.getPosition();
-
-    // Scan for skull blocks in a cube around the player
-    for (int x = -SCAN_RADIUS; x <= SCAN_RADIUS; x++) {
-      for (int y = -SCAN_RADIUS; y <= SCAN_RADIUS; y++) {
-        for (int z = -SCAN_RADIUS; z <= SCAN_RADIUS; z++) {
-          BlockPos checkPos = playerPos.add(x, y, z);
+    // Register particle listener on the first tick of a connection, a no-op once it is attached
+    registerParticleListener();
 
-          // Skip if already processed to avoid duplicate checks
-          if (processedHeads.contains(checkPos)) {
-            continue;
-          }
+    // Restore saved ghosts, apply flames and worker verdicts and infer the claim states of nearby heads
+    tracker.tick(clientTicks, mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ);
 
-          Block block = mc.theWorld.getBlockState(checkPos).getBlock();
-          if (block == Blocks.skull) {
-            // Add to check queue with timestamp (check after 1 second delay)
-            if (!headsToCheck.containsKey(checkPos)) {
-              headsToCheck.put(checkPos, System.currentTimeMillis() + 1000);
-              if (debugMode) {
-                sendMessage("§7[DEBUG] Found skull at " + checkPos + ", queued for checking");
-              }
-            }
-          }
-        }
-      }
+    // Publish a new overlay snapshot if anything changed
+    GhostHeadTable heads = tracker.getHeads();
+    if (overlayVersion != heads.getVersion()) {
+      publishOverlay();
     }
 
-    // Process heads that are ready to be checked
-    Iterator<Map.Entry<BlockPos, Long>> iterator = headsToCheck.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<BlockPos, Long> entry = iterator.next();
-      BlockPos pos = entry.getKey();
-      long readyTime = entry.getValue();
-
-      // Check if enough time has passed (1 second delay)
-      if (System.currentTimeMillis() >= readyTime) {
-        // Verify block still exists before checking
-        Block block = mc.theWorld.getBlockState(pos).getBlock();
-        if (block == Blocks.skull) {
-          checkHeadTexture(pos, false); // Don't show verbose output for automatic scans
-          processedHeads.add(pos);
-        }
-        iterator.remove();
+    // Keep the route in step with the unclaimed heads and shorten it within its own budget
+    if (routeEnabled) {
+      long routeStart = System.nanoTime();
+      if (routeVersion != heads.getVersion()) {
+        syncRoute();
+      }
+      route.setStart(mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ);
+      if (!route.isConverged()) {
+        route.improve(routeStart + ROUTE_BUDGET);
+        routeTime.recordSince(routeStart);
       }
     }
-  }
 
-  /**
-   * Checks if a head at the given position is a ghost head by analyzing its texture.
-   * @param blockPos The position of the skull block to check
-   * @param verbose Whether to output detailed debug information
-   */
-  private void checkHeadTexture(BlockPos blockPos, boolean verbose) {
-    Minecraft mc = Minecraft.getMinecraft();
-    if (mc.theWorld == null) {
-      return;
+    // Persist new verdicts now and then, the save itself runs on a texture worker
+    if (clientTicks % CACHE_SAVE_INTERVAL == 0) {
+      textureClassifier.saveCache();
     }
 
-    // Get tile entity at the position
-    TileEntity te = mc.theWorld.getTileEntity(blockPos);
-
-    if (te instanceof TileEntitySkull) {
-      TileEntitySkull skull = (TileEntitySkull) te;
-
-      if (verbose) {
-        sendMessage("§eTile Entity: §fTileEntitySkull");
-        sendMessage("§eSkull Type: §f" + skull.getSkullType());
-      }
-
-      // Get GameProfile (contains texture data for player heads)
-      GameProfile profile = skull.getPlayerProfile();
-
-      if (profile != null) {
-        if (verbose) {
-          sendMessage("§a§lGame Profile Found!");
-          sendMessage("§ePlayer Name: §f" + (profile.getName() != null ? profile.getName() : "Unknown"));
-          sendMessage("§eUUID: §f" + (profile.getId() != null ? profile.getId().toString() : "None"));
-        }
-
-        // Get texture properties from the profile
-        Collection<Property> textures = profile.getProperties().get("textures");
-
-        if (textures != null && !textures.isEmpty()) {
-          if (verbose) {
-            sendMessage("§6§l=== TEXTURE DATA FOUND ===");
-          }
-
-          boolean isGhost = false;
-
-          // Iterate through texture properties
-          for (Property property : textures) {
-            if (verbose) {
-              sendMessage("§eProperty Name: §f" + property.getName());
-            }
-            String base64Value = property.getValue();
-            if (verbose) {
-              sendMessage("§eBase64 Value: §f" + base64Value);
-            }
-
-            // Decode base64 to get texture URL
-            try {
-              byte[] decoded = Base64.getDecoder().decode(base64Value);
-              String decodedJson = new String(decoded);
-              if (verbose) {
-                sendMessage("§6Decoded JSON: §f" + decodedJson);
-              }
-
-              // Extract URL from JSON
-              if (decodedJson.contains("\"url\"")) {
-                int urlStart = decodedJson.indexOf("\"url\"") + 7;
-                int urlEnd = decodedJson.indexOf("\"", urlStart);
-                if (urlEnd > urlStart) {
-                  String textureUrl = decodedJson.substring(urlStart, urlEnd);
-                  if (verbose) {
-                    sendMessage("§a§lTexture URL: §f" + textureUrl);
-                  }
-
-                  // Extract texture ID from URL (the hash at the end)
-                  String textureId = extractTextureId(textureUrl);
-                  if (textureId != null) {
-                    if (verbose) {
-                      sendMessage("§eTexture ID: §f" + textureId);
-                      sendMessage("§eChecking texture similarity...");
-                    }
-
-                    // Compare texture against known ghost textures
-                    if (isGhostTextureByImage(textureId, verbose)) {
-                      isGhost = true;
-                    }
-                  }
-                }
-              }
-            } catch (Exception e) {
-              if (verbose) {
-                sendMessage("§cCouldn't decode base64: " + e.getMessage());
-              }
-            }
-
-            // Display signature if present (for debugging)
-            if (verbose && property.hasSignature()) {
-              sendMessage("§eSignature: §f" + property.getSignature());
-            }
-          }
-
-          // Display ghost detection result and update tracking sets
-          if (isGhost) {
-            if (verbose) {
-              sendMessage("§d§l  ❂ GHOST DETECTED! ❂");
-            }
-
-            // Add to ghost head positions for rendering and tracking
-            if (!ghostHeadPositions.contains(blockPos)) {
-              ghostHeadPositions.add(blockPos);
-              totalGhostsFound++; // Increment total count
-              sendMessage("§d§lNew ghost head detected at " + blockPos + " (Total: " + totalGhostsFound + ")");
-            }
-          } else {
-            if (verbose) {
-              sendMessage("§7This is not a ghost head.");
-            }
-
-            // Remove from ghost head positions if it was there
-            ghostHeadPositions.remove(blockPos);
-          }
-
-        } else {
-          if (verbose) {
-            sendMessage("§cNo texture properties found in GameProfile");
-          }
-        }
-      } else {
-        if (verbose) {
-          sendMessage("§cNo GameProfile found for this skull");
-        }
-      }
-    } else {
-      if (verbose) {
-        sendMessage("§cNo TileEntitySkull found (te: " + (te != null ? te.getClass().getSimpleName() : "null") + ")");
-      }
+    // Sample metrics, the export files are written on a background thread
+    queueDepth.record(tracker.getQueuedCount());
+    if (clientTicks % 20 == 0) {
+      metrics.sampleRates(System.nanoTime());
     }
-  }
-
-  /**
-   * Extracts the texture ID from a Minecraft texture URL.
-   * URL format: http://textures.minecraft.net/texture/[ID]
-   * @param textureUrl The full texture URL
-   * @return The texture ID (hash), or null if extraction fails
-   */
-  private String extractTextureId(String textureUrl) {
-    if (textureUrl == null) {
-      return null;
+    if (clientTicks % METRICS_EXPORT_INTERVAL == 0) {
+      metrics.export(new File(mc.mcDataDir, "ghosthunt/metrics.csv"), new File(mc.mcDataDir, "ghosthunt/metrics.json"));
     }
 
-    // URL format: http://textures.minecraft.net/texture/[ID]
-    // Extract the part after the last slash
-    int lastSlash = textureUrl.lastIndexOf('/');
-    if (lastSlash != -1 && lastSlash < textureUrl.length() - 1) {
-      return textureUrl.substring(lastSlash + 1);
-    }
+    // Check queued heads and continue the periodic scan for as long as the tick budget lasts
+    long tickStart = System.nanoTime();
+    long deadline = tickStart + tickBudgetNanos;
+    tracker.processCheckQueue(deadline);
 
-    return null;
+    // Packets already feed discovery, the periodic scan is only a fallback when enabled
+    if (periodicScanEnabled) {
+      continueScan(mc.theWorld, mc.thePlayer, deadline);
+    }
+    tickWork.recordSince(tickStart);
   }
 
   /**
-   * Checks if the given texture ID matches any ghost texture by comparing image pixels.
-   * Loads textures from local storage and compares a specific region.
-   * @param textureId The texture ID to check
-   * @param verbose Whether to output detailed debug information
-   * @return true if texture matches a known ghost texture, false otherwise
+   * Continues the periodic scan pass chunk by chunk until the deadline passes, and plans a new
+   * pass around the player once the previous one finished and the scan interval is over.
+   * Only chunks changed or reloaded since their last scan are visited, nearest to where the player
+   * is heading first, so a player standing in an unchanged area causes no scanning.
+   * @param world The current world
+   * @param player The player to scan around
+   * @param deadline System.nanoTime() value after which no further chunk is scanned
    */
-  private boolean isGhostTextureByImage(String textureId, boolean verbose) {
-    if (textureId == null) {
-      return false;
-    }
-
-    try {
-      // Load the texture to check from local storage
-      BufferedImage checkTexture = loadLocalTexture(textureId, verbose);
-      if (checkTexture == null) {
-        if (verbose) {
-          sendMessage("§cFailed to load texture for comparison");
-        }
-        return false;
+  private void continueScan(World world, EntityPlayer player, long deadline) {
+    if (!scanScheduler.hasNext()) {
+      if (clientTicks - scanPlanTick < SCAN_INTERVAL) {
+        return;
       }
-
-      // Compare against each known ghost texture
-      for (String ghostId : GHOST_TEXTURE_IDS) {
-        BufferedImage ghostTexture = getGhostTexture(ghostId, verbose);
-        if (ghostTexture == null) {
-          continue;
-        }
-
-        // Compare the top portion of the textures (where ghost features are)
-        if (compareTextureRegion(checkTexture, ghostTexture, verbose)) {
-          if (verbose) {
-            sendMessage("§aTexture region matches ghost texture!");
-          }
-          return true;
-        }
+      scanPlanTick = clientTicks;
+      if (scanScheduler.plan(player.posX, player.posZ, player.posX - player.lastTickPosX,
+              player.posZ - player.lastTickPosZ, SCAN_RADIUS) == 0) {
+        return;
       }
+    }
 
-      if (verbose) {
-        sendMessage("§7Texture region does not match any ghost textures.");
+    long start = System.nanoTime();
+    while (scanScheduler.hasNext()) {
+      long chunk = scanScheduler.nextChunk();
+      int chunkX = ChunkScanScheduler.chunkX(chunk);
+      int chunkZ = ChunkScanScheduler.chunkZ(chunk);
+
+      // Skip chunks a chunk packet rescanned since the plan was made, and chunks that are not loaded
+      if (scanScheduler.isDirty(chunkX, chunkZ) && !world.getChunkFromChunkCoords(chunkX, chunkZ).isEmpty()) {
+        SkullScanner.scanChunk(world, chunkX, chunkZ, this::queueHead);
+        scanScheduler.markScanned(chunkX, chunkZ);
       }
-      return false;
 
-    } catch (Exception e) {
-      if (verbose) {
-        sendMessage("§cError during texture comparison: " + e.getMessage());
+      if (System.nanoTime() >= deadline) {
+        break;
       }
-      return false;
     }
+    scanTime.recordSince(start);
   }
 
   /**
-   * Gets or loads a ghost texture from cache.
-   * Caches textures to avoid repeated disk I/O.
-   * @param textureId The texture ID to load
-   * @param verbose Whether to output detailed debug information
-   * @return The loaded BufferedImage, or null if loading fails
+   * Prints the tile entity, profile and texture properties of a clicked skull for debugging.
+   * @param world The current world
+   * @param blockPos The position of the skull block
    */
-  private BufferedImage getGhostTexture(String textureId, boolean verbose) {
-    if (ghostTextureCache.containsKey(textureId)) {
-      return ghostTextureCache.get(textureId);
+  private void describeSkull(World world, BlockPos blockPos) {
+    // Get tile entity at the position
+    TileEntity te = world.getTileEntity(blockPos);
+    if (!(te instanceof TileEntitySkull)) {
+      sendMessage("§cNo TileEntitySkull found (te: " + (te != null ? te.getClass().getSimpleName() : "null") + ")");
+      return;
     }
 
-    BufferedImage image = loadLocalTexture(textureId, verbose);
-    if (image != null) {
-      ghostTextureCache.put(textureId, image);
-    }
-    return image;
-  }
+    TileEntitySkull skull = (TileEntitySkull) te;
+    sendMessage("§eTile Entity: §fTileEntitySkull");
+    sendMessage("§eSkull Type: §f" + skull.getSkullType());
 
-  /**
-   * Loads a texture from the local assets folder.
-   * Path format: assets/skins/[first 2 chars]/[texture_id]
-   * @param textureId The texture ID to load
-   * @param verbose Whether to output detailed debug information
-   * @return The loaded BufferedImage, or null if loading fails
-   */
-  private BufferedImage loadLocalTexture(String textureId, boolean verbose) {
-    if (textureId == null || textureId.length() < 2) {
-      return null;
+    // Get GameProfile (contains texture data for player heads)
+    GameProfile profile = skull.getPlayerProfile();
+    if (profile == null) {
+      sendMessage("§cNo GameProfile found for this skull");
+      return;
     }
-
-    try {
-      // Get Minecraft data directory
-      File mcDir = Minecraft.getMinecraft().mcDataDir;
-
-      // Build path: assets/skins/[first 2 chars]/[texture_id]
-      // The first 2 chars are used as a subdirectory for organization
-      String firstTwoChars = textureId.substring(0, 2);
-      File textureFile = new File(mcDir, "assets/skins/" + firstTwoChars + "/" + textureId);
-
-      if (verbose) {
-        sendMessage("§eAttempting to load: §f" + textureFile.getAbsolutePath());
-      }
-
-      // Check if file exists
-      if (!textureFile.exists()) {
-        if (verbose) {
-          sendMessage("§cTexture file not found: " + textureFile.getName());
+    sendMessage("§a§lGame Profile Found!");
+    sendMessage("§ePlayer Name: §f" + (profile.getName() != null ? profile.getName() : "Unknown"));
+    sendMessage("§eUUID: §f" + (profile.getId() != null ? profile.getId().toString() : "None"));
+
+    // Get texture properties from the profile
+    Collection<Property> textures = profile.getProperties().get("textures");
+    if (textures != null && !textures.isEmpty()) {
+      sendMessage("§6§l=== TEXTURE DATA FOUND ===");
+      for (Property property : textures) {
+        sendMessage("§eProperty Name: §f" + property.getName());
+        sendMessage("§eBase64 Value: §f" + property.getValue());
+        // Display signature if present (for debugging)
+        if (property.hasSignature()) {
+          sendMessage("§eSignature: §f" + property.getSignature());
         }
-        return null;
-      }
-
-      // Load the image using ImageIO
-      BufferedImage image = ImageIO.read(textureFile);
-
-      if (image != null && verbose) {
-        sendMessage("§aSuccessfully loaded texture: §f" + textureFile.getName());
-      } else if (verbose) {
-        sendMessage("§cFailed to read image file");
-      }
-
-      return image;
-
-    } catch (Exception e) {
-      if (verbose) {
-        sendMessage("§cFailed to load texture: " + e.getMessage());
       }
-      return null;
     }
   }
 
   /**
-   * Compares a specific region of two textures for similarity.
-   * Uses pixel-by-pixel comparison of the defined region (top portion of head).
-   * @param img1 First image to compare
-   * @param img2 Second image to compare
-   * @param verbose Whether to output detailed debug information
-   * @return true if textures match (95%+ similarity), false otherwise
+   * Picks the database file of the current server and world.
+   * Servers are told apart by address, worlds by dimension and spawn point, since the client
+   * has nothing else that identifies the map.
+   * @param mc The Minecraft instance
+   * @return ghosthunt/db/[server]/[world].log
    */
-  private boolean compareTextureRegion(BufferedImage img1, BufferedImage img2, boolean verbose) {
-    // Check if images are valid
-    if (img1 == null || img2 == null) {
-      return false;
-    }
-
-    // Check if the region is within bounds for both images
-    if (img1.getWidth() < COMPARE_START_X + COMPARE_WIDTH ||
-            img1.getHeight() < COMPARE_START_Y + COMPARE_HEIGHT ||
-            img2.getWidth() < COMPARE_START_X + COMPARE_WIDTH ||
-            img2.getHeight() < COMPARE_START_Y + COMPARE_HEIGHT) {
-      if (verbose) {
-        sendMessage("§cTexture too small for region comparison");
-      }
-      return false;
-    }
-
-    // Compare pixels in the specified region (pixel by pixel)
-    int matchingPixels = 0;
-    int totalPixels = COMPARE_WIDTH * COMPARE_HEIGHT;
-
-    for (int y = 0; y < COMPARE_HEIGHT; y++) {
-      for (int x = 0; x < COMPARE_WIDTH; x++) {
-        // Get RGB values for both images at the same position
-        int rgb1 = img1.getRGB(COMPARE_START_X + x, COMPARE_START_Y + y);
-        int rgb2 = img2.getRGB(COMPARE_START_X + x, COMPARE_START_Y + y);
-
-        // Count matching pixels
-        if (rgb1 == rgb2) {
-          matchingPixels++;
-        }
-      }
+  private static File getDatabaseFile(Minecraft mc) {
+    String server;
+    if (mc.getCurrentServerData() != null) {
+      server = mc.getCurrentServerData().serverIP;
+    } else if (mc.getIntegratedServer() != null) {
+      server = "singleplayer_" + mc.getIntegratedServer().getFolderName();
+    } else {
+      server = "unknown";
     }
 
-    // Calculate similarity percentage
-    double similarity = (double) matchingPixels / totalPixels * 100.0;
-    if (verbose) {
-      sendMessage("§eSimilarity: §f" + String.format("%.2f", similarity) + "%");
-    }
+    BlockPos spawn = mc.theWorld.getSpawnPoint();
+    String world = "dim" + mc.theWorld.provider.getDimensionId() + "_" + spawn.getX() + "_" + spawn.getY() + "_" + spawn.getZ();
+    return new File(mc.mcDataDir, "ghosthunt/db/" + sanitize(server) + "/" + sanitize(world) + ".log");
+  }
 
-    // Consider it a match if 95% or more pixels match
-    return similarity >= 95.0;
+  private static String sanitize(String name) {
+    return name.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9._-]", "_");
   }
 
   /**
    * Sends a message to the player's chat.
    * @param message The message to send (supports Minecraft color codes)
    */
-  private void sendMessage(String message) {
+  private static void sendMessage(String message) {
     Minecraft mc = Minecraft.getMinecraft();
     if (mc.thePlayer != null) {
       mc.thePlayer.addChatMessage(new ChatComponentText(message));
@@ -656,29 +662,113 @@ public class HeadTextureListener {
    * Commands:
    * - //ghoststatus: Displays statistics about detected ghost heads
    * - //ghostdebug: Toggles debug mode on/off
+   * - //ghostscan: Toggles the periodic radius scan on/off
+   * - //ghostmetrics: Displays hot path metrics and writes them to the export files
+   * - //ghostbudget [microseconds]: Shows or sets the scan and check work allowed per tick
+   * - //ghostrecord: Starts or stops recording a capture for offline replay
+   * - //ghostlod [blocks]: Shows or sets the distance beyond which heads are drawn as cluster markers
+   * - //ghostroute: Toggles the route line through the unclaimed ghost heads
    * @param command The full command string
    */
   public void handleCommand(String command) {
+    GhostHeadTable heads = tracker.getHeads();
     if (command.equalsIgnoreCase("//ghoststatus")) {
       sendMessage("§6§l========== GHOST STATUS ==========");
-      sendMessage("§e§lTotal Ghosts Found (All Time): §f" + totalGhostsFound);
-      sendMessage("§e§lCurrent Ghosts Tracked: §f" + ghostHeadPositions.size());
-      sendMessage("§a§lClaimed Ghosts: §f" + claimedGhostHeads.size());
-      sendMessage("§c§lUnclaimed Ghosts (With Flames): §f" + unclaimedGhostHeads.size());
+      sendMessage("§e§lTotal Ghosts Found (All Time): §f" + database.getTotalFound());
+      sendMessage("§e§lCurrent Ghosts Tracked: §f" + heads.getGhostCount());
+      sendMessage("§a§lClaimed Ghosts: §f" + heads.getClaimedCount());
+      sendMessage("§c§lUnclaimed Ghosts (With Flames): §f" + heads.getUnclaimedCount());
+      if (routeEnabled) {
+        sendMessage("§b§lRoute: §f" + route.getWaypointCount() + " ghosts, "
+                + (int) route.getLength() + " blocks" + (route.isConverged() ? "" : " §7(improving)"));
+      }
       sendMessage("§6§l==================================");
 
       if (debugMode) {
         sendMessage("§7[DEBUG MODE: ON]");
+        ParticleEventRing flameEvents = tracker.getFlameEvents();
+        sendMessage("§7Flame events: " + flameEvents.getPublished() + " queued, "
+                + flameEvents.getCoalesced() + " coalesced, " + flameEvents.getDropped() + " dropped, "
+                + heads.getFlamingCount() + " heads with flames");
+        sendMessage("§7Verdict cache: " + verdictCache.size() + " textures, "
+                + verdictCache.getHits() + " hits, " + verdictCache.getMisses() + " misses");
+        sendMessage("§7Saved ghosts for this world: " + (database.isLoaded()
+                ? database.getKnownGhostCount() : "loading"));
       }
     } else if (command.equalsIgnoreCase("//ghostdebug")) {
       // Toggle debug mode
       debugMode = !debugMode;
+      tracker.setDebugMode(debugMode);
       sendMessage("§eDebug mode: " + (debugMode ? "§aON" : "§cOFF"));
+    } else if (command.equalsIgnoreCase("//ghostscan")) {
+      // Toggle periodic radius scan
+      periodicScanEnabled = !periodicScanEnabled;
+      sendMessage("§ePeriodic scan: " + (periodicScanEnabled ? "§aON" : "§cOFF"));
+    } else if (command.equalsIgnoreCase("//ghostmetrics")) {
+      sendMessage("§6§l========== GHOST METRICS ==========");
+      for (String line : metrics.report()) {
+        sendMessage(line);
+      }
+      sendMessage("§6§l===================================");
+
+      File dataDir = Minecraft.getMinecraft().mcDataDir;
+      metrics.export(new File(dataDir, "ghosthunt/metrics.csv"), new File(dataDir, "ghosthunt/metrics.json"));
+    } else if (command.equalsIgnoreCase("//ghostroute")) {
+      // Toggle the route, it is planned from scratch only when turned on
+      routeEnabled = !routeEnabled;
+      route.clear();
+      routeVersion = -1;
+      sendMessage("§eRoute: " + (routeEnabled ? "§aON §7(" + heads.getUnclaimedCount() + " unclaimed ghosts)" : "§cOFF"));
+    } else if (command.equalsIgnoreCase("//ghostrecord")) {
+      if (capture != null) {
+        stopRecording();
+      } else if (Minecraft.getMinecraft().theWorld != null) {
+        startRecording();
+      }
+    } else if (command.toLowerCase().startsWith("//ghostbudget")) {
+      String argument = EnumChatFormatting.getTextWithoutFormattingCodes(command.substring("//ghostbudget".length())).trim();
+      if (!argument.isEmpty()) {
+        try {
+          long micros = Long.parseLong(argument);
+          if (micros < 50 || micros > 50000) {
+            sendMessage("§cTick budget must be between 50 and 50000 microseconds");
+            return;
+          }
+          tickBudgetNanos = micros * 1000;
+        } catch (NumberFormatException e) {
+          sendMessage("§cUsage: //ghostbudget [microseconds]");
+          return;
+        }
+      }
+      sendMessage("§eTick budget: §f" + tickBudgetNanos / 1000 + " µs §7(default " + DEFAULT_TICK_BUDGET / 1000 + ")");
+    } else if (command.toLowerCase().startsWith("//ghostlod")) {
+      String argument = EnumChatFormatting.getTextWithoutFormattingCodes(command.substring("//ghostlod".length())).trim();
+      if (!argument.isEmpty()) {
+        try {
+          int blocks = Integer.parseInt(argument);
+          if (blocks < 32 || blocks > 512) {
+            sendMessage("§cMarker distance must be between 32 and 512 blocks");
+            return;
+          }
+          lodDistance = blocks;
+        } catch (NumberFormatException e) {
+          sendMessage("§cUsage: //ghostlod [blocks]");
+          return;
+        }
+      }
+      sendMessage("§eMarker distance: §f" + (int) lodDistance + " blocks §7(default " + (int) DEFAULT_LOD_DISTANCE + ")");
+      OverlayGeometry overlay = overlayFront;
+      sendMessage("§7Last frame: " + overlay.getFrameCubeCount() + " cubes, " + overlay.getFrameQuadCount() + " quads, "
+              + overlay.getFrameMarkerCount() + " markers, " + overlay.getFrameDropped() + " heads over the caps");
     }
   }
 
   /**
    * Renders colored overlays on ghost heads in the world.
+   * All heads inside the camera frustum are drawn in one batch from the overlay snapshot
+   * published by the client tick, with a level of detail by distance: cubes up close,
+   * camera-facing quads at mid range and one marker per chunk column beyond the marker distance.
+   * Each tier is capped, so the vertices per frame stay bounded on maps with many heads.
    * Colors indicate status:
    * - GREEN: Claimed (either clicked or no flames when nearby)
    * - RED: Unclaimed (flames detected, not clicked yet)
@@ -687,7 +777,8 @@ public class HeadTextureListener {
   @SubscribeEvent
   public void onRenderWorld(RenderWorldLastEvent event) {
     // Don't render if no ghost heads are tracked
-    if (ghostHeadPositions.isEmpty()) {
+    OverlayGeometry overlay = overlayFront;
+    if (overlay.getHeadCount() == 0) {
       return;
     }
 
@@ -696,14 +787,26 @@ public class HeadTextureListener {
       return;
     }
 
+    long start = System.nanoTime();
+
     // Calculate player's interpolated position for smooth rendering
     double playerX = mc.thePlayer.lastTickPosX + (mc.thePlayer.posX - mc.thePlayer.lastTickPosX) * event.partialTicks;
     double playerY = mc.thePlayer.lastTickPosY + (mc.thePlayer.posY - mc.thePlayer.lastTickPosY) * event.partialTicks;
     double playerZ = mc.thePlayer.lastTickPosZ + (mc.thePlayer.posZ - mc.thePlayer.lastTickPosZ) * event.partialTicks;
 
-    // Set up OpenGL state for rendering
+    // The clipping helper was updated for this frame by the world renderer
+    if (overlayFrustum == null) {
+      overlayFrustum = new Frustum();
+      overlayCulling = overlayFrustum::isBoxInFrustum;
+    }
+    overlayFrustum.setPosition(playerX, playerY, playerZ);
+
+    // Set up OpenGL state for rendering, the vertex data is relative to the overlay origin
     GlStateManager.pushMatrix();
-    GlStateManager.translate(-playerX, -playerY, -playerZ);
+    GlStateManager.translate(
+            overlay.getOriginX() - playerX,
+            overlay.getOriginY() - playerY,
+            overlay.getOriginZ() - playerZ);
 
     GlStateManager.disableTexture2D();
     GlStateManager.enableBlend();
@@ -714,120 +817,41 @@ public class HeadTextureListener {
     Tessellator tessellator = Tessellator.getInstance();
     WorldRenderer worldRenderer = tessellator.getWorldRenderer();
 
-    // Remove ghost heads that no longer exist in the world
-    Iterator<BlockPos> iterator = ghostHeadPositions.iterator();
-    while (iterator.hasNext()) {
-      BlockPos pos = iterator.next();
-
-      // Check if block still exists and is still a skull
-      Block block = mc.theWorld.getBlockState(pos).getBlock();
-      if (block != Blocks.skull) {
-        iterator.remove();
-        processedHeads.remove(pos);
-        claimedGhostHeads.remove(pos);
-        unclaimedGhostHeads.remove(pos);
-        continue;
-      }
-
-      // Create bounding box for the head (1x1x1 block)
-      AxisAlignedBB bb = new AxisAlignedBB(
-              pos.getX(), pos.getY(), pos.getZ(),
-              pos.getX() + 1, pos.getY() + 1, pos.getZ() + 1
-      );
-
-      // Start drawing quads for this ghost head
-      worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_COLOR);
-
-      // Calculate distance to player for proximity checks
-      double distanceToPlayer = Math.sqrt(
-              Math.pow(pos.getX() + 0.5 - mc.thePlayer.posX, 2) +
-                      Math.pow(pos.getY() + 0.5 - mc.thePlayer.posY, 2) +
-                      Math.pow(pos.getZ() + 0.5 - mc.thePlayer.posZ, 2)
-      );
-
-      // Check current state
-      boolean isNearby = distanceToPlayer <= 8.0;
-      boolean hasFlames = hasFlameParticlesNearby(pos);
-      boolean isClaimed = claimedGhostHeads.contains(pos);
-      boolean isUnclaimed = unclaimedGhostHeads.contains(pos);
-
-      // Update state when nearby (automatic state detection)
-      if (isNearby) {
-        if (hasFlames && !isClaimed) {
-          // Mark as unclaimed (RED) if flames detected and not clicked yet
-          unclaimedGhostHeads.add(pos);
-          if (debugMode) {
-            sendMessage("§7[DEBUG] Ghost at " + pos + " marked as UNCLAIMED (flames detected)");
-          }
-        } else if (!hasFlames && !isClaimed && !isUnclaimed) {
-          // Auto-claim (GREEN) if no flames and not marked as anything yet
-          claimedGhostHeads.add(pos);
-          if (debugMode) {
-            sendMessage("§7[DEBUG] Ghost at " + pos + " auto-claimed (no flames)");
-          }
-        }
-      }
-
-      // Set color based on persistent state
-      float red, green, blue;
-
-      if (isClaimed) {
-        // GREEN: Claimed (no flames when nearby OR manually clicked)
-        red = 0.0F;
-        green = 1.0F;
-        blue = 0.0F;
-      } else if (isUnclaimed) {
-        // RED: Unclaimed (flames detected, not clicked yet)
-        red = 1.0F;
-        green = 0.0F;
-        blue = 0.0F;
-      } else {
-        // YELLOW: Unknown state (not checked yet)
-        red = 1.0F;
-        green = 1.0F;
-        blue = 0.0F;
+    // Pick the level of detail of every on-screen ghost head, heads outside the camera frustum are skipped
+    overlay.setCamera(playerX, playerY, playerZ, ActiveRenderInfo.getRotationX(), ActiveRenderInfo.getRotationXZ(),
+            ActiveRenderInfo.getRotationZ(), ActiveRenderInfo.getRotationYZ(), ActiveRenderInfo.getRotationXY());
+    overlay.planFrame(lodDistance, overlayCulling);
+
+    // Draw them all in a single batch
+    worldRenderer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_COLOR);
+    for (int i = 0; i < overlay.getFrameCubeCount(); i++) {
+      worldRenderer.addVertexData(overlay.getVertexData(overlay.getFrameCube(i)));
+    }
+    for (int i = 0; i < overlay.getFrameQuadCount(); i++) {
+      overlay.writeHeadQuad(overlayQuad, overlay.getFrameQuad(i));
+      worldRenderer.addVertexData(overlayQuad);
+    }
+    for (int i = 0; i < overlay.getFrameMarkerCount(); i++) {
+      overlay.writeMarker(overlayQuad, overlay.getFrameMarker(i));
+      worldRenderer.addVertexData(overlayQuad);
+    }
+    renderVertices.record(worldRenderer.getVertexCount());
+    tessellator.draw();
+
+    // Line from the player through the next heads on the route, fading out along the way
+    int waypoints = routeEnabled ? Math.min(route.getWaypointCount(), ROUTE_WAYPOINTS) : 0;
+    if (waypoints > 0) {
+      GL11.glLineWidth(2.0F);
+      worldRenderer.begin(GL11.GL_LINE_STRIP, DefaultVertexFormats.POSITION_COLOR);
+      worldRenderer.pos(playerX - overlay.getOriginX(), playerY - overlay.getOriginY(), playerZ - overlay.getOriginZ())
+              .color(1.0F, 1.0F, 1.0F, 0.8F).endVertex();
+      for (int i = 0; i < waypoints; i++) {
+        long key = route.getWaypoint(i);
+        worldRenderer.pos(BlockKeys.x(key) + 0.5 - overlay.getOriginX(), BlockKeys.y(key) + 0.5 - overlay.getOriginY(),
+                BlockKeys.z(key) + 0.5 - overlay.getOriginZ()).color(1.0F, 1.0F, 1.0F, 0.8F - 0.12F * (i + 1)).endVertex();
       }
-      float alpha = 0.3F; // Semi-transparent
-
-      // Render all 6 faces of the cube with the determined color
-
-      // Bottom face
-      worldRenderer.pos(bb.minX, bb.minY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.minY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.minY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.minY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-
-      // Top face
-      worldRenderer.pos(bb.minX, bb.maxY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.maxY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.maxY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.maxY, bb.minZ).color(red, green, blue, alpha).endVertex();
-
-      // North face
-      worldRenderer.pos(bb.minX, bb.minY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.maxY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.maxY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.minY, bb.minZ).color(red, green, blue, alpha).endVertex();
-
-      // South face
-      worldRenderer.pos(bb.minX, bb.minY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.minY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.maxY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.maxY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-
-      // West face
-      worldRenderer.pos(bb.minX, bb.minY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.minY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.maxY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.minX, bb.maxY, bb.minZ).color(red, green, blue, alpha).endVertex();
-
-      // East face
-      worldRenderer.pos(bb.maxX, bb.minY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.maxY, bb.minZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.maxY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-      worldRenderer.pos(bb.maxX, bb.minY, bb.maxZ).color(red, green, blue, alpha).endVertex();
-
       tessellator.draw();
+      GL11.glLineWidth(1.0F);
     }
 
     // Restore OpenGL state
@@ -835,5 +859,89 @@ public class HeadTextureListener {
     GlStateManager.enableTexture2D();
     GlStateManager.disableBlend();
     GlStateManager.popMatrix();
+
+    renderTime.recordSince(start);
+  }
+
+  /**
+   * Adds unclaimed ghost heads that are not on the route yet and cuts out heads that were claimed,
+   * evicted or turned out not to be ghosts. The route itself is kept, only its changes are applied.
+   */
+  private void syncRoute() {
+    GhostHeadTable heads = tracker.getHeads();
+    route.retain(key -> {
+      int row = heads.rowOf(key);
+      return row >= 0 && heads.getState(row) == GhostHeadTable.UNCLAIMED;
+    });
+    for (int row = 0; row < heads.size(); row++) {
+      if (heads.getClassification(row) == GhostHeadTable.GHOST && heads.getState(row) == GhostHeadTable.UNCLAIMED) {
+        route.add(heads.getPosition(row));
+      }
+    }
+    routeVersion = heads.getVersion();
+  }
+
+  /**
+   * Rebuilds the overlay vertex data from the tracked ghost heads and their claim state
+   * into the back buffer and publishes it to the render handler.
+   * A far marker standing for several heads shows the most urgent state among them.
+   * Colors indicate status:
+   * - GREEN: Claimed (no flames when nearby OR manually clicked)
+   * - RED: Unclaimed (flames detected, not clicked yet)
+   * - YELLOW: Unknown state (not checked yet)
+   */
+  private void publishOverlay() {
+    GhostHeadTable heads = tracker.getHeads();
+    int count = heads.getGhostCount();
+    long[] keys = new long[count];
+    int[] colors = new int[count];
+    int[] ranks = new int[count];
+
+    int i = 0;
+    for (int row = 0; row < heads.size(); row++) {
+      if (heads.getClassification(row) != GhostHeadTable.GHOST) {
+        continue;
+      }
+      keys[i] = heads.getPosition(row);
+      byte state = heads.getState(row);
+      if (state == GhostHeadTable.CLAIMED) {
+        colors[i] = OVERLAY_CLAIMED;
+        ranks[i] = 0;
+      } else if (state == GhostHeadTable.UNCLAIMED) {
+        colors[i] = OVERLAY_UNCLAIMED;
+        ranks[i] = 2;
+      } else {
+        colors[i] = OVERLAY_UNKNOWN;
+        ranks[i] = 1;
+      }
+      i++;
+    }
+
+    OverlayGeometry built = overlayBack;
+    built.build(keys, colors, ranks, count);
+    overlayBack = overlayFront;
+    overlayFront = built;
+    overlayVersion = heads.getVersion();
+  }
+
+  /**
+   * The client world as the tracker sees it.
+   */
+  private static class ClientSkulls implements HeadTracker.SkullSource {
+    @Override
+    public List<String> skullAt(long key) {
+      World world = Minecraft.getMinecraft().theWorld;
+      BlockPos pos = BlockPos.fromLong(key);
+      if (world == null || !(world.getTileEntity(pos) instanceof TileEntitySkull)) {
+        return null;
+      }
+      return texturePropertiesAt(world, pos);
+    }
+
+    @Override
+    public boolean isChunkLoaded(int chunkX, int chunkZ) {
+      World world = Minecraft.getMinecraft().theWorld;
+      return world != null && !world.getChunkFromChunkCoords(chunkX, chunkZ).isEmpty();
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,630 @@
+package me.formax.mod.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the heads of one world from discovery to verdict and claim state: the head table, the
+ * ghost head index and flame events read by the particle matcher, the check queue, verdicts, the
+ * ghost database and claim inference.
+ * <p>
+ * Knows nothing about the game client. Skulls are read through a SkullSource and textures are
+ * classified by a Classifier, so HeadTextureListener drives it with the client world and the texture
+ * workers, and CaptureReplayer drives it with a captured world and synchronous classification.
+ * Everything runs on the driving thread, except that flame events may be offered from any thread.
+ */
+public class HeadTracker {
+
+  // Client ticks a flame particle counts for (2 seconds)
+  static final long FLAME_TIMEOUT_TICKS = 40;
+
+  // Delay in milliseconds before a discovered skull is checked, gives its tile entity time to arrive
+  static final long CHECK_DELAY = 1000;
+
+  // Retries of a head whose texture could not be decided, each after twice the delay of the one before
+  // After the last one the head waits until the reference skins change or its skull is updated
+  static final int MAX_UNDECIDED_RETRIES = 6;
+
+  // Distance in blocks within which a head's claim state is inferred from its flames (squared)
+  static final double CLAIM_INFERENCE_DISTANCE_SQ = 8.0 * 8.0;
+
+  // Ready heads from which they are classified as one batch instead of one by one, and the largest batch
+  private static final int BATCH_MIN_HEADS = 32;
+  private static final int BATCH_MAX_HEADS = 1024;
+
+  /**
+   * The world the heads are in.
+   */
+  public interface SkullSource {
+    /**
+     * @param key The packed position
+     * @return The Base64 values of the "textures" properties of the skull there, empty if it has none,
+     *         null if there is no skull
+     */
+    List<String> skullAt(long key);
+
+    /**
+     * @return true if the chunk is loaded, heads in an unloaded chunk are out of range rather than gone
+     */
+    boolean isChunkLoaded(int chunkX, int chunkZ);
+  }
+
+  /**
+   * Classifies skull textures, verdicts are picked up on a later tick.
+   */
+  public interface Classifier {
+    /**
+     * @return false if the classifier is busy and the head should be retried later
+     */
+    boolean submit(long pos, List<String> propertyValues, boolean verbose, boolean claimIfGhost);
+
+    /**
+     * @return true if a batch is being classified, a new batch is refused until it is done
+     */
+    boolean isBatchRunning();
+
+    /**
+     * @return false if the batch was refused and the skulls should be classified one by one
+     */
+    boolean submitBatch(long[] positions, List<List<String>> propertyValues);
+
+    /**
+     * @return The next finished verdict, or null if none is ready
+     */
+    TextureClassifier.Verdict poll();
+
+    /**
+     * @return A number that changes whenever reference skins are added
+     */
+    int getReferenceVersion();
+  }
+
+  // Every processed head with its classification, claim state and flame deadline
+  private final GhostHeadTable heads = new GhostHeadTable();
+
+  // Spatial index over the ghost heads in the table, read by the particle matcher
+  private final HeadSpatialIndex ghostHeadIndex = new HeadSpatialIndex();
+
+  // Flame events handed from the particle matcher to the tick
+  private final ParticleEventRing flameEvents = new ParticleEventRing(1024);
+
+  // Queue for heads that need to be checked (with timestamp for delayed checking)
+  private final HeadCheckQueue headsToCheck = new HeadCheckQueue();
+
+  // Heads of the chunk being resynced, reused for every chunk
+  private final LongHashSet chunkHeads = new LongHashSet();
+
+  // Texture IDs of skulls, to tell skull updates that change the texture from ones that do not
+  private final TexturePropertyParser propertyParser = new TexturePropertyParser(4096);
+
+  private final SkullSource skulls;
+  private final Classifier classifier;
+  private final GhostDatabase database;
+  private final LongSupplier clock;
+  private final Consumer<String> chat;
+
+  // Reference skin version the classified heads were checked against
+  private int checkedReferenceVersion = 0;
+
+  private boolean debugMode = false;
+
+  // Receives the decided verdicts while a capture is recorded, null otherwise
+  private CaptureWriter capture = null;
+
+  /**
+   * @param skulls The world the heads are in
+   * @param classifier Classifies the skull textures
+   * @param database Saved ghost heads of the world, opened by the driver
+   * @param clock Current time in milliseconds, for the check queue
+   * @param chat Receives the messages for the player
+   */
+  public HeadTracker(SkullSource skulls, Classifier classifier, GhostDatabase database, LongSupplier clock,
+                     Consumer<String> chat) {
+    this.skulls = skulls;
+    this.classifier = classifier;
+    this.database = database;
+    this.clock = clock;
+    this.chat = chat;
+  }
+
+  public GhostHeadTable getHeads() {
+    return heads;
+  }
+
+  public HeadSpatialIndex getGhostHeadIndex() {
+    return ghostHeadIndex;
+  }
+
+  /**
+   * @return The flame events, offered to by the particle matcher from any thread
+   */
+  public ParticleEventRing getFlameEvents() {
+    return flameEvents;
+  }
+
+  public int getQueuedCount() {
+    return headsToCheck.size();
+  }
+
+  public void setDebugMode(boolean debugMode) {
+    this.debugMode = debugMode;
+  }
+
+  public void setCapture(CaptureWriter capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Restores saved ghost heads, applies flames and verdicts, expires flames and infers the claim
+   * states of ghost heads near the player. Queued heads are checked separately with processCheckQueue.
+   * @param ticks Ticks since the start, for flame timeouts
+   * @param playerX Player X position
+   * @param playerY Player Y position
+   * @param playerZ Player Z position
+   */
+  public void tick(long ticks, double playerX, double playerY, double playerZ) {
+    // Restore the ghost heads saved for this world once the database has loaded in the background
+    restoreLoaded();
+
+    // Apply flame events received by the particle matcher
+    drainFlameEvents(ticks);
+
+    // Apply texture verdicts finished by the classifier
+    applyVerdicts();
+
+    // New reference skins may match heads that were checked against fewer of them
+    int referenceVersion = classifier.getReferenceVersion();
+    if (referenceVersion != checkedReferenceVersion) {
+      checkedReferenceVersion = referenceVersion;
+      requeueUnmatched();
+    }
+
+    // Hand the ghost heads added and removed since the last tick to the particle matcher as one table
+    ghostHeadIndex.publish();
+
+    // Forget flames that timed out, only heads due this tick are touched
+    heads.expireFlames(ticks);
+
+    updateClaimStates(playerX, playerY, playerZ);
+  }
+
+  /**
+   * Puts the ghost heads saved for this world back into the head table once the database has loaded.
+   * @return true if they were restored by this call
+   */
+  public boolean restoreLoaded() {
+    LongLongHashMap savedGhosts = database.takeLoaded();
+    if (savedGhosts == null) {
+      return false;
+    }
+    restoreGhosts(savedGhosts);
+    return true;
+  }
+
+  /**
+   * Clears all per-world tracking state. The database is left to the driver.
+   */
+  public void clear() {
+    heads.clear();
+    ghostHeadIndex.clear();
+    headsToCheck.clear();
+  }
+
+  /**
+   * Adds a skull to the check queue unless it was already processed or queued.
+   * @param key The packed position of the skull
+   */
+  public void queueHead(long key) {
+    // Skip if already processed to avoid duplicate checks
+    if (heads.contains(key)) {
+      return;
+    }
+
+    // Add to check queue with timestamp (check after CHECK_DELAY)
+    if (headsToCheck.offer(key, clock.getAsLong() + CHECK_DELAY) && debugMode) {
+      chat.accept("§7[DEBUG] Found skull at " + describe(key) + ", queued for checking");
+    }
+  }
+
+  /**
+   * Resyncs the heads of a chunk that was loaded, changed or unloaded. Known heads without a skull are
+   * evicted, and forgotten by the database unless the chunk was unloaded. The skulls of a loaded chunk
+   * are queued by the driver.
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
+   * @param unloaded Whether the chunk was unloaded, its heads are only out of range then
+   */
+  public void chunkChanged(int chunkX, int chunkZ, boolean unloaded) {
+    LongHashSet known = knownHeadsIn(chunkX, chunkZ);
+    for (int slot = known.firstSlot(); slot >= 0; slot = known.nextSlot(slot)) {
+      long key = known.keyAt(slot);
+      if (skulls.skullAt(key) == null) {
+        evictHead(key);
+        if (!unloaded) {
+          database.recordRemoved(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Handles a single block change. A skull is queued for checking, anything else evicts the position.
+   * @param key The packed position of the changed block
+   * @param skull Whether the new block is a skull
+   */
+  public void blockChanged(long key, boolean skull) {
+    if (skull) {
+      queueHead(key);
+    } else if (heads.contains(key) || headsToCheck.contains(key)) {
+      evictHead(key);
+      database.recordRemoved(key);
+    }
+  }
+
+  /**
+   * Handles a skull update. The skull profile may have changed, so the head is checked again. A ghost
+   * head is only checked again when its texture differs from the one it was seen with, and keeps its
+   * claim state until the new verdict arrives.
+   * @param key The packed position of the skull
+   * @param properties The skull's texture property values after the update
+   */
+  public void skullUpdated(long key, List<String> properties) {
+    // Servers resend skulls without changing them, a ghost head restored from the database takes the first texture seen
+    int row = heads.rowOf(key);
+    if (row >= 0 && heads.getClassification(row) == GhostHeadTable.GHOST && !properties.isEmpty()
+            && !heads.setTexture(row, textureHash(properties))) {
+      return;
+    }
+    headsToCheck.offer(key, clock.getAsLong() + CHECK_DELAY);
+  }
+
+  /**
+   * Handles the player right-clicking a skull: a ghost head is marked claimed, and the head is checked
+   * right away, a head that turns out to be a ghost is claimed when its verdict arrives.
+   * @param key The packed position of the skull
+   * @param verbose Whether the classifier should report the details of the check
+   */
+  public void click(long key, boolean verbose) {
+    boolean tracked = heads.contains(key);
+    int row = heads.track(key);
+    boolean isGhost = heads.getClassification(row) == GhostHeadTable.GHOST;
+    headsToCheck.remove(key);
+    if (!submit(key, skulls.skullAt(key), verbose, !isGhost)) {
+      // Classifier is busy, check it with the queued heads instead
+      if (!tracked) {
+        heads.remove(key);
+        queueHead(key);
+      }
+      chat.accept("§cTexture workers are busy, head queued for checking");
+    }
+
+    // Mark as claimed when player right-clicks a ghost head (moves out of unclaimed if it was there)
+    if (isGhost) {
+      setHeadState(row, GhostHeadTable.CLAIMED);
+      chat.accept("§a§lGhost head marked as CLAIMED!");
+    }
+  }
+
+  /**
+   * Takes ready heads off the front of the check queue and hands them to the classifier until the
+   * deadline passes. At least one head is taken per call, so a tiny budget still makes progress.
+   * Many ready heads at once, e.g. after joining a hub, are classified together as one batch.
+   * @param deadline System.nanoTime() value after which no further head is started
+   */
+  public void processCheckQueue(long deadline) {
+    long now = clock.getAsLong();
+    if (!classifier.isBatchRunning() && headsToCheck.countReady(now, BATCH_MIN_HEADS) == BATCH_MIN_HEADS) {
+      submitBatch(now, deadline);
+      return;
+    }
+
+    do {
+      // Heads become ready in queue order, so a front that is not ready ends the pass
+      long key = headsToCheck.peekReady(now);
+      if (key == BlockKeys.NONE) {
+        return;
+      }
+
+      // Verify the skull still exists before checking
+      List<String> propertyValues = skulls.skullAt(key);
+      if (propertyValues != null) {
+        heads.track(key);
+        if (!submit(key, propertyValues, false, false)) {
+          // Classifier is busy, the head stays in front and is retried on the next call
+          return;
+        }
+      }
+      headsToCheck.poll();
+    } while (System.nanoTime() < deadline);
+  }
+
+  /**
+   * Takes ready heads off the check queue until the deadline passes or the batch is full, and
+   * hands their textures to the classifier as one batch.
+   */
+  private void submitBatch(long now, long deadline) {
+    List<Long> positions = new ArrayList<>();
+    List<List<String>> propertyValues = new ArrayList<>();
+    long key;
+    while (positions.size() < BATCH_MAX_HEADS && (key = headsToCheck.peekReady(now)) != BlockKeys.NONE) {
+      headsToCheck.poll();
+      List<String> values = skulls.skullAt(key);
+      if (values != null) {
+        int row = heads.track(key);
+        if (!values.isEmpty()) {
+          heads.setTexture(row, textureHash(values));
+          positions.add(key);
+          propertyValues.add(values);
+        }
+      }
+      if (System.nanoTime() >= deadline) {
+        break;
+      }
+    }
+
+    long[] packed = new long[positions.size()];
+    for (int i = 0; i < packed.length; i++) {
+      packed[i] = positions.get(i);
+    }
+    if (!classifier.submitBatch(packed, propertyValues)) {
+      // Batch refused, put the heads back to be checked one by one
+      for (long position : packed) {
+        heads.remove(position);
+        headsToCheck.offer(position, now + CHECK_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Hands a skull's texture to the classifier, the verdict is applied by a later tick.
+   * @param propertyValues The skull's texture property values, null if the skull is gone
+   * @return false if the classifier is busy and the check should be retried later
+   */
+  private boolean submit(long key, List<String> propertyValues, boolean verbose, boolean claimIfGhost) {
+    if (propertyValues == null || propertyValues.isEmpty()) {
+      if (verbose) {
+        chat.accept("§cNo texture properties found for this skull");
+      }
+      return true;
+    }
+
+    // Remember which texture the verdict is for, later skull updates only matter if it changes
+    int row = heads.rowOf(key);
+    if (row >= 0) {
+      heads.setTexture(row, textureHash(propertyValues));
+    }
+    return classifier.submit(key, propertyValues, verbose, claimIfGhost);
+  }
+
+  /**
+   * Applies all flame events published since the last tick in one batch.
+   */
+  private void drainFlameEvents(long ticks) {
+    long ghostKey;
+    while ((ghostKey = flameEvents.poll()) != BlockKeys.NONE) {
+      // Skip heads that were evicted after the event was published
+      int row = heads.rowOf(ghostKey);
+      if (row < 0) {
+        continue;
+      }
+
+      heads.recordFlame(row, ticks, FLAME_TIMEOUT_TICKS);
+      if (debugMode) {
+        chat.accept("§7[DEBUG] Flame detected at ghost head: " + describe(ghostKey));
+      }
+    }
+  }
+
+  /**
+   * Applies the verdicts finished by the classifier since the last tick.
+   * Verdicts for heads that were evicted in the meantime are discarded. A head whose texture could
+   * not be decided yet goes back into the check queue and keeps its classification.
+   */
+  private void applyVerdicts() {
+    TextureClassifier.Verdict verdict;
+    while ((verdict = classifier.poll()) != null) {
+      if (verdict.log != null) {
+        for (String line : verdict.log) {
+          chat.accept(line);
+        }
+      }
+
+      long key = verdict.pos;
+      int row = heads.rowOf(key);
+      if (row < 0) {
+        continue;
+      }
+
+      if (!verdict.decided) {
+        // Back off, a skin that is not downloaded now is unlikely to be there a second later
+        int attempts = heads.recordUndecided(row);
+        if (attempts <= MAX_UNDECIDED_RETRIES) {
+          headsToCheck.offer(key, clock.getAsLong() + (CHECK_DELAY << (attempts - 1)));
+        }
+        if (verdict.log != null) {
+          chat.accept(attempts <= MAX_UNDECIDED_RETRIES ? "§7Texture not available yet, checking again later."
+                  : "§7Texture not available, checking again when the reference skins change.");
+        }
+        continue;
+      }
+
+      if (capture != null) {
+        capture.verdict(key, verdict.ghost);
+      }
+
+      // Display ghost detection result and update the head table
+      byte previous = heads.classify(row, verdict.ghost);
+      if (verdict.ghost) {
+        if (verdict.log != null) {
+          chat.accept("§d§l  ❂ GHOST DETECTED! ❂");
+        }
+
+        // Add to the spatial index for flame matching
+        if (previous != GhostHeadTable.GHOST) {
+          ghostHeadIndex.add(key);
+          if (database.recordGhost(key)) {
+            chat.accept("§d§lNew ghost head detected at " + describe(key) + " (Total: " + database.getTotalFound() + ")");
+          } else if (database.getState(key) > GhostHeadTable.UNKNOWN) {
+            // Found in an earlier session, keep its claim state
+            heads.setState(row, (byte) database.getState(key));
+          }
+        }
+
+        // Mark as claimed when the player right-clicked it before it was classified
+        if (verdict.claimIfGhost && setHeadState(row, GhostHeadTable.CLAIMED)) {
+          chat.accept("§a§lGhost head marked as CLAIMED!");
+        }
+      } else {
+        if (verdict.log != null) {
+          chat.accept("§7This is not a ghost head.");
+        }
+
+        // A ghost head is only checked again when its texture changed, so this one is gone for good
+        if (previous == GhostHeadTable.GHOST) {
+          ghostHeadIndex.remove(key);
+          database.recordRemoved(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues the heads found not to be ghosts and the heads that ran out of undecided retries for
+   * another check. Called when reference skins were added, since either may match one of them now.
+   */
+  private void requeueUnmatched() {
+    long readyTime = clock.getAsLong() + CHECK_DELAY;
+    for (int row = 0; row < heads.size(); row++) {
+      byte classification = heads.getClassification(row);
+      if (classification == GhostHeadTable.NOT_GHOST
+              || classification == GhostHeadTable.PENDING && heads.getUndecidedCount(row) > MAX_UNDECIDED_RETRIES) {
+        heads.clearUndecided(row);
+        headsToCheck.offer(heads.getPosition(row), readyTime);
+      }
+    }
+  }
+
+  /**
+   * Puts the ghost heads saved for this world back into the head table with their claim states.
+   * They count as processed, so chunk scans do not queue them again, and a skull update only
+   * has them classified again when it carries a different texture than the first one seen on them.
+   * Heads missing from chunks that are already loaded are dropped instead.
+   * @param savedGhosts Packed position -> claim state of the saved ghost heads
+   */
+  private void restoreGhosts(LongLongHashMap savedGhosts) {
+    for (int slot = savedGhosts.firstSlot(); slot >= 0; slot = savedGhosts.nextSlot(slot)) {
+      long key = savedGhosts.keyAt(slot);
+      if (skulls.isChunkLoaded(BlockKeys.x(key) >> 4, BlockKeys.z(key) >> 4) && skulls.skullAt(key) == null) {
+        database.recordRemoved(key);
+        continue;
+      }
+
+      int row = heads.track(key);
+      if (heads.getClassification(row) == GhostHeadTable.NOT_GHOST) {
+        continue;
+      }
+      if (heads.classify(row, true) != GhostHeadTable.GHOST) {
+        ghostHeadIndex.add(key);
+      }
+      heads.setState(row, (byte) savedGhosts.valueAt(slot));
+    }
+
+    if (debugMode) {
+      chat.accept("§7[DEBUG] Restored " + savedGhosts.size() + " saved ghost heads");
+    }
+  }
+
+  /**
+   * Infers the claim state of ghost heads near the player from their flames.
+   * A head with flames is unclaimed, a head without flames that was not marked yet is claimed.
+   */
+  private void updateClaimStates(double playerX, double playerY, double playerZ) {
+    for (int row = 0; row < heads.size(); row++) {
+      // Only ghost heads that were not marked as anything yet can change
+      if (heads.getClassification(row) != GhostHeadTable.GHOST || heads.getState(row) != GhostHeadTable.UNKNOWN) {
+        continue;
+      }
+      long key = heads.getPosition(row);
+
+      // Only update state when nearby (automatic state detection)
+      double dx = BlockKeys.x(key) + 0.5 - playerX;
+      double dy = BlockKeys.y(key) + 0.5 - playerY;
+      double dz = BlockKeys.z(key) + 0.5 - playerZ;
+      if (dx * dx + dy * dy + dz * dz > CLAIM_INFERENCE_DISTANCE_SQ) {
+        continue;
+      }
+
+      if (heads.hasFlames(row)) {
+        // Mark as unclaimed (RED) if flames detected and not clicked yet
+        setHeadState(row, GhostHeadTable.UNCLAIMED);
+        if (debugMode) {
+          chat.accept("§7[DEBUG] Ghost at " + describe(key) + " marked as UNCLAIMED (flames detected)");
+        }
+      } else {
+        // Auto-claim (GREEN) if no flames and not marked as anything yet
+        setHeadState(row, GhostHeadTable.CLAIMED);
+        if (debugMode) {
+          chat.accept("§7[DEBUG] Ghost at " + describe(key) + " auto-claimed (no flames)");
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves a ghost head to a new claim state and records the change in the database.
+   * @param row The row of the head in the head table
+   * @param state The new claim state
+   * @return true if the state changed
+   */
+  private boolean setHeadState(int row, byte state) {
+    if (!heads.setState(row, state)) {
+      return false;
+    }
+    database.recordState(heads.getPosition(row), state);
+    return true;
+  }
+
+  /**
+   * Collects the processed heads inside a chunk through the head table's chunk lists.
+   * Queued heads are left alone, the check queue drops heads whose skull is gone when they come up.
+   * @return The packed positions of the heads inside the chunk, in a set reused by the next call
+   */
+  private LongHashSet knownHeadsIn(int chunkX, int chunkZ) {
+    chunkHeads.clear();
+    for (int row = heads.firstInChunk(chunkX, chunkZ); row >= 0; row = heads.nextInChunk(row)) {
+      chunkHeads.add(heads.getPosition(row));
+    }
+    return chunkHeads;
+  }
+
+  /**
+   * Removes a head from all tracking state.
+   */
+  private void evictHead(long key) {
+    heads.remove(key);
+    ghostHeadIndex.remove(key);
+    headsToCheck.remove(key);
+  }
+
+  /**
+   * @param propertyValues The Base64 "textures" property values of a skull
+   * @return Hash of the skull's texture IDs for GhostHeadTable.setTexture, never NO_TEXTURE
+   */
+  private int textureHash(List<String> propertyValues) {
+    List<String> ids = new ArrayList<>(propertyValues.size());
+    for (String value : propertyValues) {
+      String id = propertyParser.getTextureId(value);
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    int hash = ids.hashCode();
+    return hash == GhostHeadTable.NO_TEXTURE ? 1 : hash;
+  }
+
+  private static String describe(long key) {
+    return BlockKeys.x(key) + ", " + BlockKeys.y(key) + ", " + BlockKeys.z(key);
+  }
+}
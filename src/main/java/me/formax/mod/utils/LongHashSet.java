@@ -0,0 +1,179 @@
+package me.formax.mod.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing set of packed block positions, without boxing or entry nodes.
+ * Same layout and iteration contract as LongLongHashMap, minus the values:
+ * linear probing, backward-shift deletion, BlockKeys.NONE reserved for empty slots. Not thread-safe.
+ */
+public class LongHashSet {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private int mask;
+  private int size = 0;
+
+  // Empty slot the current iteration starts after and ends at, probe chains never cross it
+  private int anchor = 0;
+
+  public LongHashSet() {
+    allocate(MIN_CAPACITY);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean contains(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * @param key The packed position
+   * @return true if the key was not in the set before
+   */
+  public boolean add(long key) {
+    int i = BlockKeys.hash(key) & mask;
+    long current;
+    while ((current = keys[i]) != BlockKeys.NONE) {
+      if (current == key) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+
+    keys[i] = key;
+    // Keep the load factor at or below 0.5 so probe chains stay short
+    if (++size * 2 > keys.length) {
+      rehash(keys.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * @param key The packed position
+   * @return true if the key was in the set
+   */
+  public boolean remove(long key) {
+    int i = indexOf(key);
+    if (i < 0) {
+      return false;
+    }
+    shiftBack(i);
+    return true;
+  }
+
+  /**
+   * Removes all keys and gives back the memory of a table that grew large.
+   */
+  public void clear() {
+    if (keys.length > MIN_CAPACITY * 4) {
+      allocate(MIN_CAPACITY);
+    } else {
+      Arrays.fill(keys, BlockKeys.NONE);
+    }
+    size = 0;
+  }
+
+  /**
+   * Starts an iteration.
+   * @return The first occupied slot, or -1 if the set is empty
+   */
+  public int firstSlot() {
+    if (size == 0) {
+      return -1;
+    }
+    anchor = 0;
+    while (keys[anchor] != BlockKeys.NONE) {
+      anchor++;
+    }
+    return nextSlot(anchor);
+  }
+
+  /**
+   * @param slot The current slot
+   * @return The next occupied slot, or -1 when the iteration is done
+   */
+  public int nextSlot(int slot) {
+    for (int i = (slot + 1) & mask; i != anchor; i = (i + 1) & mask) {
+      if (keys[i] != BlockKeys.NONE) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  /**
+   * Removes the key in a slot during an iteration.
+   * @param slot The current slot
+   * @return The next slot to visit, which is the same slot when a later key moved into it, or -1
+   */
+  public int removeAt(int slot) {
+    shiftBack(slot);
+    return keys[slot] != BlockKeys.NONE ? slot : nextSlot(slot);
+  }
+
+  /**
+   * Empties a slot and moves later keys of the probe chain back so lookups still find them.
+   */
+  private void shiftBack(int hole) {
+    int i = hole;
+    while (true) {
+      i = (i + 1) & mask;
+      long key = keys[i];
+      if (key == BlockKeys.NONE) {
+        break;
+      }
+      // A key may fill the hole only if its home slot is not between the hole and its current slot
+      int home = BlockKeys.hash(key) & mask;
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        keys[hole] = key;
+        hole = i;
+      }
+    }
+    keys[hole] = BlockKeys.NONE;
+    size--;
+  }
+
+  private int indexOf(long key) {
+    int i = BlockKeys.hash(key) & mask;
+    long current;
+    while ((current = keys[i]) != BlockKeys.NONE) {
+      if (current == key) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, BlockKeys.NONE);
+    mask = capacity - 1;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    allocate(capacity);
+    for (long key : oldKeys) {
+      if (key != BlockKeys.NONE) {
+        int i = BlockKeys.hash(key) & mask;
+        while (keys[i] != BlockKeys.NONE) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+      }
+    }
+  }
+}
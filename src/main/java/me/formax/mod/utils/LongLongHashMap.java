@@ -0,0 +1,220 @@
+package me.formax.mod.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from packed block positions to long values, without boxing or entry nodes.
+ * Uses linear probing with backward-shift deletion, so removals leave no tombstones behind.
+ * BlockKeys.NONE marks empty slots and cannot be used as a key. Not thread-safe.
+ * <p>
+ * Iteration walks the slots without allocating:
+ * <pre>
+ * for (int slot = map.firstSlot(); slot >= 0; ) {
+ *   if (shouldRemove(map.keyAt(slot), map.valueAt(slot))) {
+ *     slot = map.removeAt(slot);
+ *   } else {
+ *     slot = map.nextSlot(slot);
+ *   }
+ * }
+ * </pre>
+ * Entries may be removed through removeAt while iterating, but not added.
+ */
+public class LongLongHashMap {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private long[] values;
+  private int mask;
+  private int size = 0;
+
+  // Empty slot the current iteration starts after and ends at, probe chains never cross it
+  private int anchor = 0;
+
+  public LongLongHashMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * @param key The packed position
+   * @param defaultValue Returned when the key is not in the map
+   * @return The value stored for the key, or defaultValue
+   */
+  public long get(long key, long defaultValue) {
+    int i = indexOf(key);
+    return i >= 0 ? values[i] : defaultValue;
+  }
+
+  /**
+   * Stores a value, replacing any previous value for the key.
+   * @param key The packed position
+   * @param value The value to store
+   * @return true if the key was not in the map before
+   */
+  public boolean put(long key, long value) {
+    int i = BlockKeys.hash(key) & mask;
+    long current;
+    while ((current = keys[i]) != BlockKeys.NONE) {
+      if (current == key) {
+        values[i] = value;
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+
+    keys[i] = key;
+    values[i] = value;
+    // Keep the load factor at or below 0.5 so probe chains stay short
+    if (++size * 2 > keys.length) {
+      rehash(keys.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * Removes a key.
+   * @param key The packed position
+   * @return true if the key was in the map
+   */
+  public boolean remove(long key) {
+    int i = indexOf(key);
+    if (i < 0) {
+      return false;
+    }
+    shiftBack(i);
+    return true;
+  }
+
+  /**
+   * Removes all entries and gives back the memory of a table that grew large.
+   */
+  public void clear() {
+    if (keys.length > MIN_CAPACITY * 4) {
+      allocate(MIN_CAPACITY);
+    } else {
+      Arrays.fill(keys, BlockKeys.NONE);
+    }
+    size = 0;
+  }
+
+  /**
+   * Starts an iteration.
+   * @return The first occupied slot, or -1 if the map is empty
+   */
+  public int firstSlot() {
+    if (size == 0) {
+      return -1;
+    }
+    anchor = 0;
+    while (keys[anchor] != BlockKeys.NONE) {
+      anchor++;
+    }
+    return nextSlot(anchor);
+  }
+
+  /**
+   * @param slot The current slot
+   * @return The next occupied slot, or -1 when the iteration is done
+   */
+  public int nextSlot(int slot) {
+    for (int i = (slot + 1) & mask; i != anchor; i = (i + 1) & mask) {
+      if (keys[i] != BlockKeys.NONE) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  public long valueAt(int slot) {
+    return values[slot];
+  }
+
+  public void setValueAt(int slot, long value) {
+    values[slot] = value;
+  }
+
+  /**
+   * Removes the entry in a slot during an iteration.
+   * @param slot The current slot
+   * @return The next slot to visit, which is the same slot when a later entry moved into it, or -1
+   */
+  public int removeAt(int slot) {
+    shiftBack(slot);
+    return keys[slot] != BlockKeys.NONE ? slot : nextSlot(slot);
+  }
+
+  /**
+   * Empties a slot and moves later entries of the probe chain back so lookups still find them.
+   */
+  private void shiftBack(int hole) {
+    int i = hole;
+    while (true) {
+      i = (i + 1) & mask;
+      long key = keys[i];
+      if (key == BlockKeys.NONE) {
+        break;
+      }
+      // An entry may fill the hole only if its home slot is not between the hole and its current slot
+      int home = BlockKeys.hash(key) & mask;
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        keys[hole] = key;
+        values[hole] = values[i];
+        hole = i;
+      }
+    }
+    keys[hole] = BlockKeys.NONE;
+    size--;
+  }
+
+  private int indexOf(long key) {
+    int i = BlockKeys.hash(key) & mask;
+    long current;
+    while ((current = keys[i]) != BlockKeys.NONE) {
+      if (current == key) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+    Arrays.fill(keys, BlockKeys.NONE);
+    mask = capacity - 1;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    allocate(capacity);
+    for (int j = 0; j < oldKeys.length; j++) {
+      long key = oldKeys[j];
+      if (key != BlockKeys.NONE) {
+        int i = BlockKeys.hash(key) & mask;
+        while (keys[i] != BlockKeys.NONE) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+}
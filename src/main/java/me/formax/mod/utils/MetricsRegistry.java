@@ -0,0 +1,322 @@
+package me.formax.mod.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms for the mod's hot paths.
+ * Recording only touches atomics in preallocated arrays, so metrics can stay on during play
+ * without adding garbage. Reports and exports are built on demand from a point-in-time read.
+ */
+public class MetricsRegistry {
+
+  /**
+   * Monotonic event counter with a per-second rate sampled by sampleRates.
+   */
+  public static class Counter {
+    final String name;
+    private final AtomicLong total = new AtomicLong();
+    private long lastTotal = 0;
+    private volatile long rate = 0;
+
+    Counter(String name) {
+      this.name = name;
+    }
+
+    public void increment() {
+      total.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      total.addAndGet(delta);
+    }
+
+    public long get() {
+      return total.get();
+    }
+
+    /**
+     * @return Events per second over the last sampling interval
+     */
+    public long getRate() {
+      return rate;
+    }
+  }
+
+  /**
+   * Distribution of non-negative values in power-of-two buckets.
+   * Bucket i holds values whose highest set bit is i - 1, bucket 0 holds zero.
+   */
+  public static class Histogram {
+    private static final int BUCKETS = 64;
+
+    final String name;
+    final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String unit) {
+      this.name = name;
+      this.unit = unit;
+    }
+
+    /**
+     * Records one value, negative values count as zero.
+     * @param value The value in the histogram's unit
+     */
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current;
+      while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        // Another thread raised the maximum in between, retry against the new one
+      }
+    }
+
+    /**
+     * Records the time elapsed since a System.nanoTime() start, in microseconds.
+     * @param startNanos The start time
+     */
+    public void recordSince(long startNanos) {
+      record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public long getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls into.
+     * @param percentile The percentile between 0 and 100
+     * @return The estimate, never above the recorded maximum
+     */
+    public long getPercentile(double percentile) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(n * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          long upper = i == 0 ? 0 : (1L << i) - 1;
+          return Math.min(upper, max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+
+  /**
+   * Value read on demand from the component that owns it, e.g. a queue size or an existing counter.
+   */
+  private static class Gauge {
+    final String name;
+    final LongSupplier supplier;
+
+    Gauge(String name, LongSupplier supplier) {
+      this.name = name;
+      this.supplier = supplier;
+    }
+  }
+
+  private final List<Counter> counters = new ArrayList<>();
+  private final List<Histogram> histograms = new ArrayList<>();
+  private final List<Gauge> gauges = new ArrayList<>();
+  private long lastSampleNanos = System.nanoTime();
+
+  // Writes exports off the client thread, created on the first export
+  private ExecutorService exporter = null;
+
+  // Size in bytes past which the CSV file is moved to [name].1 and started over, one old file is kept
+  static final long MAX_CSV_BYTES = 1024 * 1024;
+
+  public synchronized Counter counter(String name) {
+    Counter counter = new Counter(name);
+    counters.add(counter);
+    return counter;
+  }
+
+  public synchronized Histogram histogram(String name, String unit) {
+    Histogram histogram = new Histogram(name, unit);
+    histograms.add(histogram);
+    return histogram;
+  }
+
+  public synchronized void gauge(String name, LongSupplier supplier) {
+    gauges.add(new Gauge(name, supplier));
+  }
+
+  /**
+   * Updates the per-second rates of all counters. Meant to be called about once a second.
+   * @param nowNanos The current System.nanoTime()
+   */
+  public synchronized void sampleRates(long nowNanos) {
+    long elapsed = nowNanos - lastSampleNanos;
+    if (elapsed <= 0) {
+      return;
+    }
+    for (Counter counter : counters) {
+      long total = counter.get();
+      counter.rate = (total - counter.lastTotal) * 1_000_000_000L / elapsed;
+      counter.lastTotal = total;
+    }
+    lastSampleNanos = nowNanos;
+  }
+
+  /**
+   * Formats all metrics as chat lines.
+   * @return One line per metric, with Minecraft color codes
+   */
+  public synchronized List<String> report() {
+    List<String> lines = new ArrayList<>();
+    for (Counter counter : counters) {
+      lines.add("§e" + counter.name + ": §f" + counter.get() + " §7(" + counter.getRate() + "/s)");
+    }
+    for (Gauge gauge : gauges) {
+      lines.add("§e" + gauge.name + ": §f" + gauge.supplier.getAsLong());
+    }
+    for (Histogram histogram : histograms) {
+      lines.add("§e" + histogram.name + ": §f" + histogram.getCount() + " samples, mean "
+              + histogram.getMean() + histogram.unit + ", p50 " + histogram.getPercentile(50) + histogram.unit
+              + ", p99 " + histogram.getPercentile(99) + histogram.unit + ", max " + histogram.getMax() + histogram.unit);
+    }
+    return lines;
+  }
+
+  /**
+   * Appends the current values to a CSV file and replaces a JSON file with them.
+   * The values are read on the calling thread, the files are written on a background thread.
+   * A CSV file over MAX_CSV_BYTES replaces the previous [name].1 and a new one is started.
+   * @param csvFile CSV file that gets one row per metric and export
+   * @param jsonFile JSON file that always holds the latest export
+   */
+  public void export(File csvFile, File jsonFile) {
+    List<String[]> rows = snapshotRows();
+    long timestamp = System.currentTimeMillis();
+
+    ExecutorService executor;
+    synchronized (this) {
+      if (exporter == null) {
+        exporter = Executors.newSingleThreadExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "GhostHunt Metrics Export");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      executor = exporter;
+    }
+
+    try {
+      executor.execute(() -> {
+        try {
+          writeCsv(csvFile, timestamp, rows);
+          writeJson(jsonFile, timestamp, rows);
+        } catch (IOException e) {
+          // Not fatal, the next export tries again
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Exporter was shut down, nothing to write to
+    }
+  }
+
+  /**
+   * Reads every metric into name, type, count, mean, p50, p99, max, rate columns.
+   */
+  private synchronized List<String[]> snapshotRows() {
+    List<String[]> rows = new ArrayList<>();
+    for (Counter counter : counters) {
+      rows.add(new String[] {counter.name, "counter", String.valueOf(counter.get()), "", "", "", "",
+              String.valueOf(counter.getRate())});
+    }
+    for (Gauge gauge : gauges) {
+      rows.add(new String[] {gauge.name, "gauge", String.valueOf(gauge.supplier.getAsLong()), "", "", "", "", ""});
+    }
+    for (Histogram histogram : histograms) {
+      rows.add(new String[] {histogram.name + "_" + histogram.unit, "histogram", String.valueOf(histogram.getCount()),
+              String.valueOf(histogram.getMean()), String.valueOf(histogram.getPercentile(50)),
+              String.valueOf(histogram.getPercentile(99)), String.valueOf(histogram.getMax()), ""});
+    }
+    return rows;
+  }
+
+  private static final String[] COLUMNS = {"name", "type", "count", "mean", "p50", "p99", "max", "rate"};
+
+  private static void writeCsv(File file, long timestamp, List<String[]> rows) throws IOException {
+    ensureParent(file);
+    if (file.length() > MAX_CSV_BYTES) {
+      Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    boolean header = !file.isFile();
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+      if (header) {
+        out.println("timestamp," + String.join(",", COLUMNS));
+      }
+      for (String[] row : rows) {
+        out.println(timestamp + "," + String.join(",", row));
+      }
+    }
+  }
+
+  private static void writeJson(File file, long timestamp, List<String[]> rows) throws IOException {
+    ensureParent(file);
+    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      out.println("{");
+      out.println("  \"timestamp\": " + timestamp + ",");
+      out.println("  \"metrics\": [");
+      for (int r = 0; r < rows.size(); r++) {
+        String[] row = rows.get(r);
+        StringBuilder line = new StringBuilder("    {\"name\": \"").append(row[0])
+                .append("\", \"type\": \"").append(row[1]).append('"');
+        for (int c = 2; c < COLUMNS.length; c++) {
+          if (!row[c].isEmpty()) {
+            line.append(String.format(Locale.ROOT, ", \"%s\": %s", COLUMNS[c], row[c]));
+          }
+        }
+        line.append(r < rows.size() - 1 ? "}," : "}");
+        out.println(line);
+      }
+      out.println("  ]");
+      out.println("}");
+    }
+  }
+
+  private static void ensureParent(File file) throws IOException {
+    File dir = file.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+  }
+}
@@ -0,0 +1,439 @@
+package me.formax.mod.utils;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Prebuilt vertex data for the ghost head overlays, in the POSITION_COLOR layout the
+ * tessellator uses (three floats plus one packed ABGR color per vertex).
+ * Built only when the set of heads or their colors change, then copied into the
+ * world renderer each frame for the heads that are on screen.
+ * Positions are relative to an origin close to the heads, so float precision holds far from 0,0.
+ * <p>
+ * Each frame picks a level of detail per head by its distance from the camera: a full cube up
+ * close, a single camera-facing quad at mid range, and beyond the far distance one marker per
+ * chunk column for all heads in it. Every tier has a fixed cap, so the vertices drawn per frame
+ * stay bounded however many heads a map has. Heads over the cap of their tier are left out,
+ * clusters with the most heads are planned first so they are the last to lose their markers.
+ * Plain data without any GL or Minecraft dependency.
+ */
+public class OverlayGeometry {
+
+  // Vertices and ints per head cube: 6 faces of 4 vertices, 3 position floats and 1 color each
+  public static final int VERTICES_PER_HEAD = 24;
+  public static final int INTS_PER_VERTEX = 4;
+  public static final int INTS_PER_HEAD = VERTICES_PER_HEAD * INTS_PER_VERTEX;
+
+  // Ints per camera-facing quad, used for mid range heads and far markers
+  public static final int INTS_PER_QUAD = 4 * INTS_PER_VERTEX;
+
+  // Distance in blocks within which heads are drawn as full cubes
+  public static final double CUBE_DISTANCE = 24.0;
+
+  // Most cubes, quads and markers drawn in one frame, at most 9728 vertices together
+  public static final int MAX_CUBES = 256;
+  public static final int MAX_QUADS = 768;
+  public static final int MAX_MARKERS = 128;
+
+  /**
+   * Frustum test in world coordinates, implemented by the game's frustum.
+   */
+  public interface Culling {
+    boolean isBoxInFrustum(double minX, double minY, double minZ, double maxX, double maxY, double maxZ);
+  }
+
+  // Unit cube corners for the 6 faces, same winding as the immediate mode overlay used
+  private static final int[][] CUBE_FACES = {
+          // Bottom face
+          {0, 0, 0}, {1, 0, 0}, {1, 0, 1}, {0, 0, 1},
+          // Top face
+          {0, 1, 0}, {0, 1, 1}, {1, 1, 1}, {1, 1, 0},
+          // North face
+          {0, 0, 0}, {0, 1, 0}, {1, 1, 0}, {1, 0, 0},
+          // South face
+          {0, 0, 1}, {1, 0, 1}, {1, 1, 1}, {0, 1, 1},
+          // West face
+          {0, 0, 0}, {0, 0, 1}, {0, 1, 1}, {0, 1, 0},
+          // East face
+          {1, 0, 0}, {1, 1, 0}, {1, 1, 1}, {1, 0, 1}
+  };
+
+  private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private int originX;
+  private int originY;
+  private int originZ;
+
+  private long[] headKeys = new long[0];
+  private int[][] vertexData = new int[0][];
+  private int headCount = 0;
+
+  // Heads grouped by chunk column, largest clusters first, with the members of cluster c at
+  // clusterMembers[clusterStarts[c]] to clusterMembers[clusterStarts[c + 1] - 1]
+  private int clusterCount = 0;
+  private int[] clusterStarts = new int[1];
+  private int[] clusterMembers = new int[0];
+
+  // Per cluster: bounding box relative to the origin (6 ints), center of its heads (3 floats) and marker color
+  private int[] clusterBounds = new int[0];
+  private float[] clusterCenters = new float[0];
+  private int[] clusterColors = new int[0];
+
+  // Camera of the current frame, relative to the origin, with the billboard axes of the renderer
+  private double cameraX;
+  private double cameraY;
+  private double cameraZ;
+  private float rotationX;
+  private float rotationXZ;
+  private float rotationZ;
+  private float rotationYZ;
+  private float rotationXY;
+
+  // Heads and clusters picked for each tier in the current frame
+  private final int[] frameCubes = new int[MAX_CUBES];
+  private final int[] frameQuads = new int[MAX_QUADS];
+  private final int[] frameMarkers = new int[MAX_MARKERS];
+  private int frameCubeCount = 0;
+  private int frameQuadCount = 0;
+  private int frameMarkerCount = 0;
+  private int frameDropped = 0;
+
+  /**
+   * Rebuilds the vertex data and clusters for a set of heads.
+   * @param keys Packed positions of the heads
+   * @param colors Overlay color of each head as 0xAARRGGBB
+   * @param ranks Priority of each head's color, a cluster marker takes the color of its highest ranked head
+   * @param count Number of heads to use from the arrays
+   */
+  public void build(long[] keys, int[] colors, int[] ranks, int count) {
+    if (vertexData.length < count) {
+      vertexData = new int[count][];
+      headKeys = new long[count];
+    }
+
+    if (count > 0) {
+      originX = BlockKeys.x(keys[0]);
+      originY = BlockKeys.y(keys[0]);
+      originZ = BlockKeys.z(keys[0]);
+    }
+
+    for (int i = 0; i < count; i++) {
+      if (vertexData[i] == null) {
+        vertexData[i] = new int[INTS_PER_HEAD];
+      }
+      headKeys[i] = keys[i];
+      writeCube(vertexData[i], BlockKeys.x(keys[i]) - originX, BlockKeys.y(keys[i]) - originY,
+              BlockKeys.z(keys[i]) - originZ, toAbgr(colors[i]));
+    }
+    headCount = count;
+
+    buildClusters(keys, colors, ranks, count);
+  }
+
+  /**
+   * Groups the heads by chunk column and orders the clusters by size, largest first.
+   */
+  private void buildClusters(long[] keys, int[] colors, int[] ranks, int count) {
+    // Cluster of every head, numbered in order of appearance
+    LongLongHashMap clusterOfColumn = new LongLongHashMap();
+    int[] clusterOfHead = new int[count];
+    int[] sizes = new int[count];
+    int clusters = 0;
+    for (int i = 0; i < count; i++) {
+      long column = ChunkScanScheduler.chunkKey(BlockKeys.x(keys[i]) >> 4, BlockKeys.z(keys[i]) >> 4);
+      int cluster = (int) clusterOfColumn.get(column, -1);
+      if (cluster < 0) {
+        cluster = clusters++;
+        clusterOfColumn.put(column, cluster);
+      }
+      clusterOfHead[i] = cluster;
+      sizes[cluster]++;
+    }
+
+    // Largest first: sort size and cluster number packed into one long
+    long[] order = new long[clusters];
+    for (int c = 0; c < clusters; c++) {
+      order[c] = (long) -sizes[c] << 32 | c;
+    }
+    Arrays.sort(order);
+    int[] rankOfCluster = new int[clusters];
+    for (int c = 0; c < clusters; c++) {
+      rankOfCluster[(int) order[c]] = c;
+    }
+
+    clusterCount = clusters;
+    clusterStarts = new int[clusters + 1];
+    clusterMembers = new int[count];
+    clusterBounds = new int[clusters * 6];
+    clusterCenters = new float[clusters * 3];
+    clusterColors = new int[clusters];
+    for (int c = 0; c < clusters; c++) {
+      clusterStarts[c + 1] = clusterStarts[c] + sizes[(int) order[c]];
+    }
+
+    int[] filled = new int[clusters];
+    int[] bestRanks = new int[clusters];
+    Arrays.fill(bestRanks, Integer.MIN_VALUE);
+    for (int i = 0; i < count; i++) {
+      int c = rankOfCluster[clusterOfHead[i]];
+      int x = BlockKeys.x(keys[i]) - originX;
+      int y = BlockKeys.y(keys[i]) - originY;
+      int z = BlockKeys.z(keys[i]) - originZ;
+      int b = c * 6;
+      if (filled[c] == 0) {
+        clusterBounds[b] = x;
+        clusterBounds[b + 1] = y;
+        clusterBounds[b + 2] = z;
+        clusterBounds[b + 3] = x + 1;
+        clusterBounds[b + 4] = y + 1;
+        clusterBounds[b + 5] = z + 1;
+      } else {
+        clusterBounds[b] = Math.min(clusterBounds[b], x);
+        clusterBounds[b + 1] = Math.min(clusterBounds[b + 1], y);
+        clusterBounds[b + 2] = Math.min(clusterBounds[b + 2], z);
+        clusterBounds[b + 3] = Math.max(clusterBounds[b + 3], x + 1);
+        clusterBounds[b + 4] = Math.max(clusterBounds[b + 4], y + 1);
+        clusterBounds[b + 5] = Math.max(clusterBounds[b + 5], z + 1);
+      }
+      clusterCenters[c * 3] += x + 0.5F;
+      clusterCenters[c * 3 + 1] += y + 0.5F;
+      clusterCenters[c * 3 + 2] += z + 0.5F;
+      if (ranks[i] > bestRanks[c]) {
+        bestRanks[c] = ranks[i];
+        clusterColors[c] = toAbgr(colors[i]);
+      }
+      clusterMembers[clusterStarts[c] + filled[c]++] = i;
+    }
+    for (int c = 0; c < clusters; c++) {
+      int size = clusterStarts[c + 1] - clusterStarts[c];
+      clusterCenters[c * 3] /= size;
+      clusterCenters[c * 3 + 1] /= size;
+      clusterCenters[c * 3 + 2] /= size;
+    }
+  }
+
+  /**
+   * Sets the camera of the next frame.
+   * @param x The camera position in world coordinates
+   * @param rotationX The billboard axes of the renderer, as particles use them
+   */
+  public void setCamera(double x, double y, double z,
+                        float rotationX, float rotationXZ, float rotationZ, float rotationYZ, float rotationXY) {
+    cameraX = x - originX;
+    cameraY = y - originY;
+    cameraZ = z - originZ;
+    this.rotationX = rotationX;
+    this.rotationXZ = rotationXZ;
+    this.rotationZ = rotationZ;
+    this.rotationYZ = rotationYZ;
+    this.rotationXY = rotationXY;
+  }
+
+  /**
+   * Picks the heads drawn in this frame and their level of detail.
+   * Clusters entirely beyond the far distance become a single marker, heads of nearer clusters
+   * become cubes within CUBE_DISTANCE and quads beyond it.
+   * @param farDistance Distance in blocks beyond which heads are only drawn as cluster markers
+   * @param culling Frustum of this frame
+   */
+  public void planFrame(double farDistance, Culling culling) {
+    frameCubeCount = 0;
+    frameQuadCount = 0;
+    frameMarkerCount = 0;
+    frameDropped = 0;
+    double farSq = farDistance * farDistance;
+    double cubeSq = CUBE_DISTANCE * CUBE_DISTANCE;
+
+    for (int c = 0; c < clusterCount; c++) {
+      int b = c * 6;
+      if (!culling.isBoxInFrustum(originX + clusterBounds[b], originY + clusterBounds[b + 1], originZ + clusterBounds[b + 2],
+              originX + clusterBounds[b + 3], originY + clusterBounds[b + 4], originZ + clusterBounds[b + 5])) {
+        continue;
+      }
+
+      int start = clusterStarts[c];
+      int end = clusterStarts[c + 1];
+      if (boxDistanceSq(b) > farSq) {
+        if (frameMarkerCount < MAX_MARKERS) {
+          frameMarkers[frameMarkerCount++] = c;
+        } else {
+          frameDropped += end - start;
+        }
+        continue;
+      }
+
+      boolean single = end - start == 1;
+      for (int m = start; m < end; m++) {
+        int head = clusterMembers[m];
+        long key = headKeys[head];
+        int x = BlockKeys.x(key);
+        int y = BlockKeys.y(key);
+        int z = BlockKeys.z(key);
+        if (!single && !culling.isBoxInFrustum(x, y, z, x + 1, y + 1, z + 1)) {
+          continue;
+        }
+
+        double dx = x - originX + 0.5 - cameraX;
+        double dy = y - originY + 0.5 - cameraY;
+        double dz = z - originZ + 0.5 - cameraZ;
+        double distanceSq = dx * dx + dy * dy + dz * dz;
+        if (distanceSq <= cubeSq && frameCubeCount < MAX_CUBES) {
+          frameCubes[frameCubeCount++] = head;
+        } else if (frameQuadCount < MAX_QUADS) {
+          frameQuads[frameQuadCount++] = head;
+        } else {
+          frameDropped++;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The squared distance from the camera to the nearest point of a cluster's bounding box
+   */
+  private double boxDistanceSq(int b) {
+    double dx = Math.max(0.0, Math.max(clusterBounds[b] - cameraX, cameraX - clusterBounds[b + 3]));
+    double dy = Math.max(0.0, Math.max(clusterBounds[b + 1] - cameraY, cameraY - clusterBounds[b + 4]));
+    double dz = Math.max(0.0, Math.max(clusterBounds[b + 2] - cameraZ, cameraZ - clusterBounds[b + 5]));
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  /**
+   * Writes the camera-facing quad of a mid range head.
+   * @param out Receives INTS_PER_QUAD ints relative to the origin
+   * @param index The head, see getFrameQuad
+   */
+  public void writeHeadQuad(int[] out, int index) {
+    long key = headKeys[index];
+    int[] cube = vertexData[index];
+    writeQuad(out, BlockKeys.x(key) - originX + 0.5F, BlockKeys.y(key) - originY + 0.5F,
+            BlockKeys.z(key) - originZ + 0.5F, 0.5F, cube[INTS_PER_VERTEX - 1]);
+  }
+
+  /**
+   * Writes the marker of a far cluster, larger for clusters with more heads.
+   * @param out Receives INTS_PER_QUAD ints relative to the origin
+   * @param cluster The cluster, see getFrameMarker
+   */
+  public void writeMarker(int[] out, int cluster) {
+    int size = clusterStarts[cluster + 1] - clusterStarts[cluster];
+    float halfSize = 0.5F + 0.25F * (float) Math.sqrt(Math.min(size, 16));
+    writeQuad(out, clusterCenters[cluster * 3], clusterCenters[cluster * 3 + 1], clusterCenters[cluster * 3 + 2],
+            halfSize, clusterColors[cluster]);
+  }
+
+  /**
+   * Writes a quad facing the camera, with the same corners as particles.
+   */
+  private void writeQuad(int[] out, float x, float y, float z, float halfSize, int abgr) {
+    float rx = rotationX * halfSize;
+    float rxz = rotationXZ * halfSize;
+    float rz = rotationZ * halfSize;
+    float ryz = rotationYZ * halfSize;
+    float rxy = rotationXY * halfSize;
+    writeVertex(out, 0, x - rx - ryz, y - rxz, z - rz - rxy, abgr);
+    writeVertex(out, 1, x - rx + ryz, y + rxz, z - rz + rxy, abgr);
+    writeVertex(out, 2, x + rx + ryz, y + rxz, z + rz + rxy, abgr);
+    writeVertex(out, 3, x + rx - ryz, y - rxz, z + rz - rxy, abgr);
+  }
+
+  private static void writeVertex(int[] out, int vertex, float x, float y, float z, int abgr) {
+    int o = vertex * INTS_PER_VERTEX;
+    out[o] = Float.floatToRawIntBits(x);
+    out[o + 1] = Float.floatToRawIntBits(y);
+    out[o + 2] = Float.floatToRawIntBits(z);
+    out[o + 3] = abgr;
+  }
+
+  /**
+   * Writes one unit cube at a block offset from the origin.
+   */
+  private static void writeCube(int[] out, int x, int y, int z, int abgr) {
+    int o = 0;
+    for (int[] corner : CUBE_FACES) {
+      out[o++] = Float.floatToRawIntBits(x + corner[0]);
+      out[o++] = Float.floatToRawIntBits(y + corner[1]);
+      out[o++] = Float.floatToRawIntBits(z + corner[2]);
+      out[o++] = abgr;
+    }
+  }
+
+  /**
+   * Converts 0xAARRGGBB into the int the vertex buffer stores colors as, which depends on byte order.
+   */
+  private static int toAbgr(int argb) {
+    int alpha = argb >>> 24;
+    int red = (argb >> 16) & 0xFF;
+    int green = (argb >> 8) & 0xFF;
+    int blue = argb & 0xFF;
+    if (LITTLE_ENDIAN) {
+      return alpha << 24 | blue << 16 | green << 8 | red;
+    }
+    return red << 24 | green << 16 | blue << 8 | alpha;
+  }
+
+  /**
+   * Packs float color components into 0xAARRGGBB.
+   */
+  public static int argb(float red, float green, float blue, float alpha) {
+    return (int) (alpha * 255.0F) << 24 | (int) (red * 255.0F) << 16 | (int) (green * 255.0F) << 8 | (int) (blue * 255.0F);
+  }
+
+  public int getHeadCount() {
+    return headCount;
+  }
+
+  public long getHeadKey(int index) {
+    return headKeys[index];
+  }
+
+  /**
+   * @return The vertex data of one head cube, INTS_PER_HEAD ints relative to the origin
+   */
+  public int[] getVertexData(int index) {
+    return vertexData[index];
+  }
+
+  public int getFrameCubeCount() {
+    return frameCubeCount;
+  }
+
+  public int getFrameCube(int i) {
+    return frameCubes[i];
+  }
+
+  public int getFrameQuadCount() {
+    return frameQuadCount;
+  }
+
+  public int getFrameQuad(int i) {
+    return frameQuads[i];
+  }
+
+  public int getFrameMarkerCount() {
+    return frameMarkerCount;
+  }
+
+  public int getFrameMarker(int i) {
+    return frameMarkers[i];
+  }
+
+  /**
+   * @return The number of visible heads left out of this frame because their tier was full
+   */
+  public int getFrameDropped() {
+    return frameDropped;
+  }
+
+  public int getOriginX() {
+    return originX;
+  }
+
+  public int getOriginY() {
+    return originY;
+  }
+
+  public int getOriginZ() {
+    return originZ;
+  }
+}
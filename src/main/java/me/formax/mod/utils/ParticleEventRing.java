@@ -0,0 +1,119 @@
+package me.formax.mod.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer of flame events, keyed by packed head position.
+ * The network handler publishes into it without locks or allocation, and the client tick drains it
+ * in one batch. A head that already has an event waiting is coalesced instead of queued again, and
+ * a full ring drops the event and counts it, so a particle flood can never block the netty thread.
+ */
+public class ParticleEventRing {
+
+  private final int mask;
+  private final long[] keys;
+
+  // Per-slot sequence numbers, a slot is writable when its sequence equals the producer position
+  private final AtomicLongArray sequences;
+
+  // Direct-mapped table of heads with an event waiting in the ring, used for coalescing
+  private final AtomicLongArray pending;
+  private final int pendingMask;
+
+  private final AtomicLong tail = new AtomicLong();
+
+  // Consumer position, only touched by the draining thread
+  private long head = 0;
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param capacity Number of events the ring can hold, rounded up to a power of two
+   */
+  public ParticleEventRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = size - 1;
+    keys = new long[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    // Sized above the ring so distinct heads rarely share a coalescing slot
+    pending = new AtomicLongArray(size * 4);
+    pendingMask = size * 4 - 1;
+    for (int i = 0; i < size * 4; i++) {
+      pending.set(i, BlockKeys.NONE);
+    }
+  }
+
+  /**
+   * Publishes a flame event for a head. Safe to call from any thread, never blocks.
+   * @param key The packed position of the head
+   * @return false if the ring was full and the event was dropped
+   */
+  public boolean offer(long key) {
+    int pendingSlot = BlockKeys.hash(key) & pendingMask;
+    if (pending.get(pendingSlot) == key) {
+      coalesced.incrementAndGet();
+      return true;
+    }
+    pending.set(pendingSlot, key);
+
+    long pos = tail.get();
+    int index;
+    while (true) {
+      index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        // Ring is full, drop instead of waiting for the consumer
+        pending.compareAndSet(pendingSlot, key, BlockKeys.NONE);
+        dropped.incrementAndGet();
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+
+    keys[index] = key;
+    sequences.lazySet(index, pos + 1);
+    published.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Takes the next event. Must only be called from the consumer thread.
+   * @return The packed position of the head, or BlockKeys.NONE if the ring is empty
+   */
+  public long poll() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return BlockKeys.NONE;
+    }
+
+    long key = keys[index];
+    sequences.lazySet(index, head + mask + 1);
+    head++;
+    pending.compareAndSet(BlockKeys.hash(key) & pendingMask, key, BlockKeys.NONE);
+    return key;
+  }
+
+  public long getPublished() {
+    return published.get();
+  }
+
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+}
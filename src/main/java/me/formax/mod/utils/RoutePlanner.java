@@ -0,0 +1,503 @@
+package me.formax.mod.utils;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Short route from the player through a set of heads, kept up to date as heads come and go.
+ * The route is an open path starting at the player. Heads added to an empty route are chained
+ * nearest neighbour first, heads added later are inserted where they lengthen the route least,
+ * and removed heads are cut out. The route is never rebuilt from scratch.
+ * <p>
+ * Improvement alternates 2-opt (reversing a stretch of the route) and Or-opt (moving a run of up
+ * to three heads elsewhere, either way round), taking the first move that shortens the route.
+ * The search keeps its position between calls and stops at a deadline, so it can run a little
+ * every tick. Once a full sweep of both finds nothing it rests until the route changes or the
+ * player moves away from where it converged.
+ * <p>
+ * Plain data without any Minecraft dependency. Not thread-safe.
+ */
+public class RoutePlanner {
+
+  // Heads moved at once by Or-opt
+  private static final int MAX_SEGMENT = 3;
+
+  // Distance in blocks the player may move before a converged route is searched again
+  private static final double REOPTIMIZE_DISTANCE = 4.0;
+
+  // Moves shortening the route by less than this are ignored, so rounding cannot make them cycle
+  private static final double EPSILON = 1e-9;
+
+  // Moves evaluated between two looks at the clock
+  private static final int CLOCK_INTERVAL = 64;
+
+  private static final int MIN_CAPACITY = 16;
+
+  private static final int PHASE_TWO_OPT = 0;
+  private static final int PHASE_OR_OPT = 1;
+
+  // Every head on the route or waiting to be added
+  private final LongHashSet members = new LongHashSet();
+
+  // Path positions with their coordinates: 0 is the player, 1 to size the heads in visiting order at their block centers
+  private long[] keys = new long[MIN_CAPACITY];
+  private double[] xs = new double[MIN_CAPACITY];
+  private double[] ys = new double[MIN_CAPACITY];
+  private double[] zs = new double[MIN_CAPACITY];
+  private int size = 0;
+
+  // Heads waiting to be added to the route
+  private long[] pending = new long[MIN_CAPACITY];
+  private int pendingCount = 0;
+
+  // Heads added to an empty route are chained nearest neighbour first until none are left
+  private boolean seeding = false;
+
+  // Search position in path positions, with the length Or-opt saves by taking out the current run
+  private int phase = PHASE_TWO_OPT;
+  private int cursorI = 0;
+  private int cursorJ = 2;
+  private int cursorLength = 1;
+  private double cursorGain = 0;
+  private boolean improvedThisSweep = false;
+  private boolean converged = true;
+  private double convergedX;
+  private double convergedY;
+  private double convergedZ;
+
+  private long movesApplied = 0;
+
+  public int size() {
+    return size + pendingCount;
+  }
+
+  public boolean contains(long key) {
+    return members.contains(key);
+  }
+
+  public boolean isConverged() {
+    return converged && pendingCount == 0;
+  }
+
+  /**
+   * @return The number of 2-opt and Or-opt moves applied so far
+   */
+  public long getMovesApplied() {
+    return movesApplied;
+  }
+
+  /**
+   * @return The number of heads on the route, heads waiting to be added not included
+   */
+  public int getWaypointCount() {
+    return size;
+  }
+
+  /**
+   * @param index The position on the route, 0 is the head to visit first
+   * @return The packed position of the head
+   */
+  public long getWaypoint(int index) {
+    return keys[index + 1];
+  }
+
+  /**
+   * Moves the start of the route to the player.
+   */
+  public void setStart(double x, double y, double z) {
+    xs[0] = x;
+    ys[0] = y;
+    zs[0] = z;
+    if (converged) {
+      double dx = x - convergedX;
+      double dy = y - convergedY;
+      double dz = z - convergedZ;
+      if (dx * dx + dy * dy + dz * dz > REOPTIMIZE_DISTANCE * REOPTIMIZE_DISTANCE) {
+        restartSearch();
+      }
+    }
+  }
+
+  /**
+   * Queues a head for the route. It is placed by the next call to improve.
+   * @return false if the head is already on the route
+   */
+  public boolean add(long key) {
+    if (!members.add(key)) {
+      return false;
+    }
+    if (pendingCount == pending.length) {
+      pending = Arrays.copyOf(pending, pendingCount * 2);
+    }
+    pending[pendingCount++] = key;
+    if (size == 0) {
+      seeding = true;
+    }
+    return true;
+  }
+
+  /**
+   * Cuts a head out of the route, joining its neighbours.
+   * @return false if the head was not on the route
+   */
+  public boolean remove(long key) {
+    if (!members.remove(key)) {
+      return false;
+    }
+    for (int i = 0; i < pendingCount; i++) {
+      if (pending[i] == key) {
+        pending[i] = pending[--pendingCount];
+        return true;
+      }
+    }
+    for (int p = 1; p <= size; p++) {
+      if (keys[p] == key) {
+        removeAt(p);
+        break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes every head the filter rejects.
+   * @param filter Returns true for heads that stay on the route
+   * @return The number of heads removed
+   */
+  public int retain(LongPredicate filter) {
+    int removed = 0;
+    for (int i = pendingCount - 1; i >= 0; i--) {
+      if (!filter.test(pending[i])) {
+        members.remove(pending[i]);
+        pending[i] = pending[--pendingCount];
+        removed++;
+      }
+    }
+    for (int p = size; p >= 1; p--) {
+      if (!filter.test(keys[p])) {
+        members.remove(keys[p]);
+        removeAt(p);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  public void clear() {
+    members.clear();
+    size = 0;
+    pendingCount = 0;
+    seeding = false;
+    restartSearch();
+  }
+
+  /**
+   * @return The length of the route in blocks, from the player through every head
+   */
+  public double getLength() {
+    double length = 0;
+    for (int p = 0; p < size; p++) {
+      length += distance(p, p + 1);
+    }
+    return length;
+  }
+
+  /**
+   * Places queued heads, then shortens the route until the deadline passes or no move helps.
+   * @param deadline System.nanoTime() value after which no further work is started
+   * @return true if the route is settled: nothing queued and no known move shortens it
+   */
+  public boolean improve(long deadline) {
+    int evaluations = 0;
+    while (pendingCount > 0) {
+      placeNext();
+      if (++evaluations % CLOCK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+        return false;
+      }
+    }
+
+    while (!converged) {
+      for (int i = 0; i < CLOCK_INTERVAL && !converged; i++) {
+        step();
+      }
+      if (System.nanoTime() >= deadline) {
+        break;
+      }
+    }
+    return converged;
+  }
+
+  /**
+   * Adds one queued head: the one nearest to the end of the route while seeding,
+   * otherwise the last queued one where it adds the least length.
+   */
+  private void placeNext() {
+    if (seeding) {
+      double bestSq = Double.MAX_VALUE;
+      int best = 0;
+      for (int i = 0; i < pendingCount; i++) {
+        double dx = BlockKeys.x(pending[i]) + 0.5 - xs[size];
+        double dy = BlockKeys.y(pending[i]) + 0.5 - ys[size];
+        double dz = BlockKeys.z(pending[i]) + 0.5 - zs[size];
+        double distanceSq = dx * dx + dy * dy + dz * dz;
+        if (distanceSq < bestSq) {
+          bestSq = distanceSq;
+          best = i;
+        }
+      }
+      long key = pending[best];
+      pending[best] = pending[--pendingCount];
+      insertAfter(size, key);
+      if (pendingCount == 0) {
+        seeding = false;
+      }
+    } else {
+      long key = pending[--pendingCount];
+      double x = BlockKeys.x(key) + 0.5;
+      double y = BlockKeys.y(key) + 0.5;
+      double z = BlockKeys.z(key) + 0.5;
+
+      // Appending after the last head, or between path positions p and p + 1
+      double bestCost = distanceTo(size, x, y, z);
+      int bestPosition = size;
+      for (int p = 0; p < size; p++) {
+        double cost = distanceTo(p, x, y, z) + distanceTo(p + 1, x, y, z) - distance(p, p + 1);
+        if (cost < bestCost) {
+          bestCost = cost;
+          bestPosition = p;
+        }
+      }
+      insertAfter(bestPosition, key);
+    }
+    restartSearch();
+  }
+
+  /**
+   * Evaluates one candidate move at the search position, applies it if it shortens the route
+   * and advances the search position.
+   */
+  private void step() {
+    int n = size;
+    if (phase == PHASE_TWO_OPT) {
+      // Reverse path positions i + 1 to j
+      if (cursorI > n - 2) {
+        phase = PHASE_OR_OPT;
+        cursorI = 1;
+        cursorLength = 1;
+        cursorJ = 0;
+        return;
+      }
+      int i = cursorI;
+      int j = cursorJ;
+      double delta = distance(i, j) - distance(i, i + 1);
+      if (j < n) {
+        delta += distance(i + 1, j + 1) - distance(j, j + 1);
+      }
+      if (delta < -EPSILON) {
+        reverse(i + 1, j);
+        applied();
+      }
+      if (++cursorJ > n) {
+        cursorI++;
+        cursorJ = cursorI + 2;
+      }
+      return;
+    }
+
+    // Move path positions a to a + length - 1 between path positions u and u + 1
+    int a = cursorI;
+    int length = cursorLength;
+    int last = a + length - 1;
+    if (a > n) {
+      endSweep();
+      return;
+    }
+    if (last > n || length > MAX_SEGMENT) {
+      cursorI++;
+      cursorLength = 1;
+      cursorJ = 0;
+      return;
+    }
+    int u = cursorJ;
+    if (u > n) {
+      cursorLength++;
+      cursorJ = 0;
+      return;
+    }
+    if (u == 0) {
+      cursorGain = distance(a - 1, a);
+      if (last < n) {
+        cursorGain += distance(last, last + 1) - distance(a - 1, last + 1);
+      }
+    }
+    if (u >= a - 1 && u <= last) {
+      // Inside or next to the segment, try the first position after it
+      cursorJ = last + 1;
+      return;
+    }
+
+    double gain = cursorGain;
+    double forward;
+    double reversed;
+    if (u < n) {
+      double edge = distance(u, u + 1);
+      forward = distance(u, a) + distance(last, u + 1) - edge;
+      reversed = distance(u, last) + distance(a, u + 1) - edge;
+    } else {
+      forward = distance(u, a);
+      reversed = distance(u, last);
+    }
+    boolean reverse = reversed < forward;
+    if (Math.min(forward, reversed) - gain < -EPSILON) {
+      moveSegment(a, length, u, reverse);
+      applied();
+      // The run and its neighbours changed, start over with the next run
+      cursorI++;
+      cursorLength = 1;
+      cursorJ = 0;
+      return;
+    }
+    cursorJ++;
+  }
+
+  private void applied() {
+    movesApplied++;
+    improvedThisSweep = true;
+  }
+
+  /**
+   * Finishes a sweep over both neighbourhoods. A sweep without improvement means the route is settled.
+   */
+  private void endSweep() {
+    if (!improvedThisSweep) {
+      converged = true;
+      convergedX = xs[0];
+      convergedY = ys[0];
+      convergedZ = zs[0];
+    }
+    improvedThisSweep = false;
+    phase = PHASE_TWO_OPT;
+    cursorI = 0;
+    cursorJ = 2;
+  }
+
+  private void restartSearch() {
+    converged = size < 2 && pendingCount == 0;
+    if (converged) {
+      convergedX = xs[0];
+      convergedY = ys[0];
+      convergedZ = zs[0];
+    }
+    improvedThisSweep = false;
+    phase = PHASE_TWO_OPT;
+    cursorI = 0;
+    cursorJ = 2;
+  }
+
+  /**
+   * Reverses the path between two positions, both included.
+   */
+  private void reverse(int from, int to) {
+    while (from < to) {
+      swap(from++, to--);
+    }
+  }
+
+  private void swap(int a, int b) {
+    long key = keys[a];
+    keys[a] = keys[b];
+    keys[b] = key;
+    double x = xs[a];
+    xs[a] = xs[b];
+    xs[b] = x;
+    double y = ys[a];
+    ys[a] = ys[b];
+    ys[b] = y;
+    double z = zs[a];
+    zs[a] = zs[b];
+    zs[b] = z;
+  }
+
+  /**
+   * Moves a run of heads behind path position u.
+   * @param from Path position of the first head of the run
+   * @param length Number of heads in the run
+   * @param u Path position the run is placed after, outside the run and not the position right before it
+   * @param reversed Whether the run is placed in reverse order
+   */
+  private void moveSegment(int from, int length, int u, boolean reversed) {
+    long[] segmentKeys = new long[length];
+    double[] segmentXs = new double[length];
+    double[] segmentYs = new double[length];
+    double[] segmentZs = new double[length];
+    for (int k = 0; k < length; k++) {
+      int source = reversed ? from + length - 1 - k : from + k;
+      segmentKeys[k] = keys[source];
+      segmentXs[k] = xs[source];
+      segmentYs[k] = ys[source];
+      segmentZs[k] = zs[source];
+    }
+
+    int target;
+    if (u < from) {
+      // The heads between u and the run move back behind it
+      shift(u + 1, u + 1 + length, from - u - 1);
+      target = u + 1;
+    } else {
+      // The heads between the run and u move forward into its place
+      shift(from + length, from, u - from - length + 1);
+      target = u - length + 1;
+    }
+    System.arraycopy(segmentKeys, 0, keys, target, length);
+    System.arraycopy(segmentXs, 0, xs, target, length);
+    System.arraycopy(segmentYs, 0, ys, target, length);
+    System.arraycopy(segmentZs, 0, zs, target, length);
+  }
+
+  private void shift(int from, int to, int count) {
+    System.arraycopy(keys, from, keys, to, count);
+    System.arraycopy(xs, from, xs, to, count);
+    System.arraycopy(ys, from, ys, to, count);
+    System.arraycopy(zs, from, zs, to, count);
+  }
+
+  private void insertAfter(int position, long key) {
+    if (size + 1 == keys.length) {
+      int capacity = keys.length * 2;
+      keys = Arrays.copyOf(keys, capacity);
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+      zs = Arrays.copyOf(zs, capacity);
+    }
+    int p = position + 1;
+    shift(p, p + 1, size - position);
+    keys[p] = key;
+    xs[p] = BlockKeys.x(key) + 0.5;
+    ys[p] = BlockKeys.y(key) + 0.5;
+    zs[p] = BlockKeys.z(key) + 0.5;
+    size++;
+  }
+
+  private void removeAt(int p) {
+    shift(p + 1, p, size - p);
+    size--;
+    restartSearch();
+  }
+
+  /**
+   * @return The distance between two path positions
+   */
+  private double distance(int p, int q) {
+    double dx = xs[p] - xs[q];
+    double dy = ys[p] - ys[q];
+    double dz = zs[p] - zs[q];
+    return Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+
+  private double distanceTo(int p, double x, double y, double z) {
+    double dx = xs[p] - x;
+    double dy = ys[p] - y;
+    double dz = zs[p] - z;
+    return Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+}
@@ -0,0 +1,61 @@
+package me.formax.mod.utils;
+
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.tileentity.TileEntitySkull;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+
+import java.util.function.Consumer;
+
+/**
+ * Finds skull blocks by walking the tile entity maps of loaded chunks instead of polling every
+ * block in a scan volume. Cost scales with the number of tile entities, not with the volume scanned.
+ */
+public class SkullScanner {
+
+  private SkullScanner() {
+  }
+
+  /**
+   * Reports every skull tile entity currently loaded in the world.
+   * Used once when the packet feed attaches, to pick up chunks that arrived before it.
+   * @param world The world to scan
+   * @param consumer Receives the position of each skull found
+   * @return The number of skulls found
+   */
+  public static int scanLoaded(World world, Consumer<BlockPos> consumer) {
+    int found = 0;
+    for (TileEntity te : world.loadedTileEntityList) {
+      if (te instanceof TileEntitySkull) {
+        consumer.accept(te.getPos());
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Reports every skull tile entity in a single chunk.
+   * @param world The world the chunk belongs to
+   * @param chunkX The chunk X coordinate
+   * @param chunkZ The chunk Z coordinate
+   * @param consumer Receives the position of each skull found
+   * @return The number of skulls found, 0 if the chunk is not loaded
+   */
+  public static int scanChunk(World world, int chunkX, int chunkZ, Consumer<BlockPos> consumer) {
+    Chunk chunk = world.getChunkFromChunkCoords(chunkX, chunkZ);
+    if (chunk.isEmpty()) {
+      return 0;
+    }
+
+    int found = 0;
+    for (TileEntity te : chunk.getTileEntityMap().values()) {
+      if (te instanceof TileEntitySkull) {
+        consumer.accept(te.getPos());
+        found++;
+      }
+    }
+    return found;
+  }
+}
@@ -0,0 +1,245 @@
+package me.formax.mod.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs skull texture classification on a small worker pool so the client thread never reads
+ * or decodes skin files. Jobs go into a bounded work queue, finished verdicts are collected
+ * and handed back to the client tick, which applies them to the tracking state.
+ * <p>
+ * When many skulls arrive at once they are classified as a batch instead: skulls are grouped by
+ * texture ID and each unique texture is compared once, in parallel on a fork-join pool with one
+ * thread per core. The verdicts of a batch are published together when the whole batch is done.
+ */
+public class TextureClassifier implements HeadTracker.Classifier {
+
+  // Number of jobs that may wait for a worker before submissions are refused
+  private static final int QUEUE_CAPACITY = 256;
+
+  private final GhostTextureMatcher matcher;
+  private final VerdictCache verdictCache;
+  private final File cacheFile;
+  private final ThreadPoolExecutor executor;
+  private final Queue<Verdict> verdicts = new ConcurrentLinkedQueue<>();
+
+  // Batch classification, at most one batch runs at a time
+  private final ForkJoinPool batchPool;
+  private final AtomicBoolean batchRunning = new AtomicBoolean();
+  private final MetricsRegistry.Histogram batchLatency;
+
+  /**
+   * Result of classifying one skull.
+   */
+  public static class Verdict {
+    public final long pos;
+    public final boolean ghost;
+
+    // False if the texture or the reference skins were not available yet, ghost is meaningless then
+    public final boolean decided;
+    public final boolean claimIfGhost;
+
+    // Debug output collected by the worker, null when the job was not verbose
+    public final List<String> log;
+
+    Verdict(long pos, Boolean ghost, boolean claimIfGhost, List<String> log) {
+      this.pos = pos;
+      this.ghost = ghost != null && ghost;
+      this.decided = ghost != null;
+      this.claimIfGhost = claimIfGhost;
+      this.log = log;
+    }
+  }
+
+  /**
+   * @param matcher Classifies the textures, shares verdictCache
+   * @param verdictCache Verdicts of textures that were already compared
+   * @param cacheFile File the verdict cache is loaded from and saved to
+   * @param threads Number of worker threads
+   * @param batchLatency Receives the time each batch took from submission to its verdicts, in microseconds
+   */
+  public TextureClassifier(GhostTextureMatcher matcher, VerdictCache verdictCache, File cacheFile, int threads,
+                           MetricsRegistry.Histogram batchLatency) {
+    this.matcher = matcher;
+    this.verdictCache = verdictCache;
+    this.cacheFile = cacheFile;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+      Thread thread = new Thread(runnable, "GhostHunt Texture Worker #" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.executor.allowCoreThreadTimeOut(true);
+
+    this.batchLatency = batchLatency;
+    AtomicInteger batchThreadCount = new AtomicInteger();
+    this.batchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("GhostHunt Batch Worker #" + batchThreadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }, null, false);
+
+    // Warm the verdict cache from the previous session
+    this.executor.execute(() -> verdictCache.load(cacheFile));
+  }
+
+  /**
+   * Saves the verdict cache on a worker thread if it changed.
+   */
+  public void saveCache() {
+    if (!verdictCache.isDirty()) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          verdictCache.save(cacheFile);
+        } catch (IOException e) {
+          // Not fatal, the verdicts are simply computed again next session
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Workers are busy, the next save attempt will pick the changes up
+    }
+  }
+
+  /**
+   * Queues a skull for classification.
+   * @param pos The packed position of the skull
+   * @param propertyValues The Base64 values of the skull profile's "textures" properties
+   * @param verbose Whether to collect detailed debug information
+   * @param claimIfGhost Whether the head should be marked claimed when it turns out to be a ghost
+   * @return false if the work queue is full and the job should be retried later
+   */
+  @Override
+  public boolean submit(long pos, List<String> propertyValues, boolean verbose, boolean claimIfGhost) {
+    try {
+      executor.execute(() -> {
+        List<String> log = verbose ? new ArrayList<>() : null;
+        Boolean ghost = matcher.isGhost(propertyValues, log);
+        verdicts.add(new Verdict(pos, ghost, claimIfGhost, log));
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if a batch is being classified, a new batch is refused until it is done
+   */
+  @Override
+  public boolean isBatchRunning() {
+    return batchRunning.get();
+  }
+
+  /**
+   * Classifies many skulls as one batch. Skulls sharing a texture are compared only once.
+   * A skull is a ghost if any of its textures is a ghost texture, and undecided if none is and
+   * one of them could not be decided, as with single jobs.
+   * @param positions The packed positions of the skulls
+   * @param propertyValues The Base64 "textures" property values of each skull, in the same order
+   * @return false if a batch is already running and the skulls should be classified otherwise
+   */
+  @Override
+  public boolean submitBatch(long[] positions, List<List<String>> propertyValues) {
+    if (!batchRunning.compareAndSet(false, true)) {
+      return false;
+    }
+
+    long start = System.nanoTime();
+    try {
+      batchPool.execute(() -> {
+        try {
+          verdicts.addAll(classifyBatch(positions, propertyValues));
+          batchLatency.recordSince(start);
+        } finally {
+          batchRunning.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      batchRunning.set(false);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs on the batch pool: groups the skulls by texture, compares the unique textures in parallel
+   * and merges the results back into one verdict per skull.
+   */
+  private List<Verdict> classifyBatch(long[] positions, List<List<String>> propertyValues) {
+    List<List<String>> textureIds = new ArrayList<>(positions.length);
+    Map<String, ForkJoinTask<Boolean>> comparisons = new LinkedHashMap<>();
+    for (List<String> values : propertyValues) {
+      List<String> ids = matcher.getTextureIds(values);
+      textureIds.add(ids);
+      for (String id : ids) {
+        if (!comparisons.containsKey(id)) {
+          comparisons.put(id, ForkJoinTask.adapt(() -> matcher.isGhostTexture(id, null)));
+        }
+      }
+    }
+
+    // Forks every comparison and waits for all of them, this thread works on some as well
+    ForkJoinTask.invokeAll(comparisons.values());
+
+    List<Verdict> batch = new ArrayList<>(positions.length);
+    for (int i = 0; i < positions.length; i++) {
+      Boolean ghost = false;
+      for (String id : textureIds.get(i)) {
+        Boolean verdict = comparisons.get(id).join();
+        if (verdict == null) {
+          if (ghost != null && !ghost) {
+            ghost = null;
+          }
+        } else if (verdict) {
+          ghost = true;
+        }
+      }
+      batch.add(new Verdict(positions[i], ghost, false, null));
+    }
+    return batch;
+  }
+
+  /**
+   * Takes the next finished verdict.
+   * @return The verdict, or null if none is ready
+   */
+  @Override
+  public Verdict poll() {
+    return verdicts.poll();
+  }
+
+  /**
+   * @return The matcher's reference skin version, see GhostTextureMatcher.getReferenceVersion
+   */
+  @Override
+  public int getReferenceVersion() {
+    return matcher.getReferenceVersion();
+  }
+
+  /**
+   * @return The number of jobs waiting for a worker
+   */
+  public int getQueuedJobs() {
+    return executor.getQueue().size();
+  }
+}
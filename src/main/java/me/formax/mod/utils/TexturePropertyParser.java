@@ -0,0 +1,310 @@
+package me.formax.mod.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the skin texture ID in the Base64 "textures" property of a skull profile.
+ * The Base64 payload is decoded byte by byte straight into a small JSON scanner that follows
+ * the textures.SKIN.url path; only the URL itself is ever built as a string, and scanning stops
+ * as soon as it is complete. Results are memoised per raw property value, since event maps put
+ * the same profile on thousands of heads. Safe to use from several threads.
+ */
+public class TexturePropertyParser {
+
+  // Key path of the skin URL in the decoded JSON
+  private static final String[] URL_PATH = {"textures", "SKIN", "url"};
+
+  // Containers nested deeper than this are not followed
+  private static final int MAX_DEPTH = 64;
+
+  // Base64 character -> 6-bit value, -1 for characters that are skipped
+  private static final byte[] BASE64 = new byte[128];
+
+  static {
+    java.util.Arrays.fill(BASE64, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64[alphabet.charAt(i)] = (byte) i;
+    }
+    // URL-safe variants decode to the same values
+    BASE64['-'] = 62;
+    BASE64['_'] = 63;
+  }
+
+  // Stored for values without a skin URL, the map cannot hold null
+  private static final String NO_TEXTURE = "";
+
+  private final int maxEntries;
+  private final LinkedHashMap<String, String> memo;
+
+  public TexturePropertyParser(int maxEntries) {
+    this.maxEntries = maxEntries;
+    // Access order keeps the least recently used entry first, ready for eviction
+    this.memo = new LinkedHashMap<String, String>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > TexturePropertyParser.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up the skin texture ID of a property value, parsing it only the first time it is seen.
+   * @param base64Value The Base64 encoded texture property value
+   * @return The texture ID (hash), or null if the value has no usable skin URL
+   */
+  public String getTextureId(String base64Value) {
+    synchronized (memo) {
+      String cached = memo.get(base64Value);
+      if (cached != null) {
+        return cached.isEmpty() ? null : cached;
+      }
+    }
+
+    String textureId = GhostTextureMatcher.extractTextureId(parseSkinUrl(base64Value));
+    synchronized (memo) {
+      memo.put(base64Value, textureId != null ? textureId : NO_TEXTURE);
+    }
+    return textureId;
+  }
+
+  /**
+   * Decodes a texture property just far enough to read textures.SKIN.url.
+   * Whitespace and key order in the JSON do not matter, string escapes in the URL are resolved.
+   * @param base64Value The Base64 encoded texture property value
+   * @return The skin URL, or null if the value is malformed or has none
+   */
+  public static String parseSkinUrl(String base64Value) {
+    if (base64Value == null) {
+      return null;
+    }
+
+    Scanner scanner = new Scanner();
+    int bits = 0;
+    int bitCount = 0;
+    for (int i = 0; i < base64Value.length(); i++) {
+      char c = base64Value.charAt(i);
+      if (c == '=') {
+        break;
+      }
+      int value = c < 128 ? BASE64[c] : -1;
+      if (value < 0) {
+        // Line breaks and other filler between Base64 characters
+        continue;
+      }
+
+      bits = bits << 6 | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        int b = (bits >> bitCount) & 0xFF;
+        if (!scanner.accept(b)) {
+          return scanner.result;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * JSON scanner fed one byte at a time, tracking only what is needed to find the URL.
+   */
+  private static final class Scanner {
+    // Between tokens, inside a string, after a backslash, inside a \\uXXXX escape, inside a number or literal
+    private static final int TOKEN = 0;
+    private static final int STRING = 1;
+    private static final int ESCAPE = 2;
+    private static final int UNICODE = 3;
+    private static final int LITERAL = 4;
+
+    private int state = TOKEN;
+    private int depth = 0;
+
+    // Bit per depth, set for objects and clear for arrays
+    private long objects = 0;
+
+    // Number of path segments matched by the open containers
+    private int matched = 0;
+
+    // Whether the next string in the current object is a key, and whether the last key was on the path
+    private boolean expectKey = false;
+    private boolean keyOnPath = false;
+
+    // Current string: key comparison progress, or the URL being captured
+    private boolean stringIsKey = false;
+    private String compareTo = null;
+    private int comparePos = 0;
+    private boolean compareOk = false;
+    private StringBuilder capture = null;
+    private int unicodeValue = 0;
+    private int unicodeDigits = 0;
+
+    String result = null;
+
+    /**
+     * @param b The next byte of the JSON
+     * @return false once scanning can stop, with result set if the URL was found
+     */
+    boolean accept(int b) {
+      switch (state) {
+        case STRING:
+          return acceptString(b);
+        case ESCAPE:
+          return acceptEscape(b);
+        case UNICODE:
+          int digit = Character.digit(b, 16);
+          if (digit < 0) {
+            return false;
+          }
+          unicodeValue = unicodeValue << 4 | digit;
+          if (++unicodeDigits == 4) {
+            stringChar((char) unicodeValue);
+            state = STRING;
+          }
+          return true;
+        case LITERAL:
+          if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+            state = TOKEN;
+            return acceptToken(b);
+          }
+          return true;
+        default:
+          return acceptToken(b);
+      }
+    }
+
+    private boolean acceptToken(int b) {
+      if (isWhitespace(b) || b == ':') {
+        return true;
+      }
+
+      switch (b) {
+        case '{':
+        case '[':
+          if (depth == MAX_DEPTH) {
+            return false;
+          }
+          // A container opened as the value of a path key continues the path
+          if (keyOnPath && inObject() && matched == depth - 1) {
+            matched = depth;
+          }
+          depth++;
+          if (b == '{') {
+            objects |= 1L << depth;
+          } else {
+            objects &= ~(1L << depth);
+          }
+          expectKey = b == '{';
+          keyOnPath = false;
+          return true;
+        case '}':
+        case ']':
+          if (depth == 0) {
+            return false;
+          }
+          if (matched == depth - 1 && matched > 0) {
+            matched--;
+          }
+          depth--;
+          keyOnPath = false;
+          return depth > 0;
+        case ',':
+          expectKey = inObject();
+          keyOnPath = false;
+          return true;
+        case '"':
+          state = STRING;
+          stringIsKey = expectKey && inObject();
+          compareTo = null;
+          capture = null;
+          if (stringIsKey) {
+            expectKey = false;
+            if (matched == depth - 1 && matched < URL_PATH.length) {
+              compareTo = URL_PATH[matched];
+              comparePos = 0;
+              compareOk = true;
+            }
+          } else if (keyOnPath && inObject() && matched == URL_PATH.length - 1 && depth == URL_PATH.length) {
+            capture = new StringBuilder(96);
+          }
+          return true;
+        default:
+          // Number, true, false or null
+          state = LITERAL;
+          keyOnPath = false;
+          return true;
+      }
+    }
+
+    private boolean acceptString(int b) {
+      if (b == '\\') {
+        state = ESCAPE;
+        return true;
+      }
+      if (b == '"') {
+        state = TOKEN;
+        if (stringIsKey) {
+          keyOnPath = compareTo != null && compareOk && comparePos == compareTo.length();
+        } else {
+          keyOnPath = false;
+          if (capture != null) {
+            result = capture.toString();
+            return false;
+          }
+        }
+        return true;
+      }
+      // URLs and keys are ASCII, multi-byte characters only ever end a comparison
+      stringChar((char) b);
+      return true;
+    }
+
+    private boolean acceptEscape(int b) {
+      state = STRING;
+      switch (b) {
+        case 'u':
+          state = UNICODE;
+          unicodeValue = 0;
+          unicodeDigits = 0;
+          return true;
+        case 'n':
+          stringChar('\n');
+          return true;
+        case 't':
+          stringChar('\t');
+          return true;
+        case 'r':
+          stringChar('\r');
+          return true;
+        case 'b':
+          stringChar('\b');
+          return true;
+        case 'f':
+          stringChar('\f');
+          return true;
+        default:
+          // \", \\ and \/ stand for the character itself
+          stringChar((char) b);
+          return true;
+      }
+    }
+
+    private void stringChar(char c) {
+      if (compareTo != null && compareOk) {
+        compareOk = comparePos < compareTo.length() && compareTo.charAt(comparePos) == c;
+        comparePos++;
+      } else if (capture != null) {
+        capture.append(c);
+      }
+    }
+
+    private boolean inObject() {
+      return (objects & 1L << depth) != 0;
+    }
+
+    private static boolean isWhitespace(int b) {
+      return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package me.formax.mod.utils;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of packed block positions, each due at a client tick.
+ * Level 0 has one slot per tick for the next 64 ticks, every further level one slot per
+ * 64 slots of the level below. An entry waits in the coarsest level that can hold it and moves
+ * down a level each time the wheel reaches its slot, so it is touched at most once per level
+ * before it is due, and advancing the wheel costs nothing for entries that are not due yet.
+ * <p>
+ * Entries are nodes in doubly linked slot lists kept in parallel arrays, with a map from key to
+ * node, so scheduling, rescheduling and cancelling are O(1) and a key is scheduled at most once.
+ * Not thread-safe.
+ */
+public class TickTimingWheel {
+
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  // Entries due this many ticks ahead or later wait in the last slot of the top level
+  private static final long MAX_DELAY = 1L << (SLOT_BITS * LEVELS);
+
+  // Extra slot after the levels for entries scheduled at a tick the wheel already passed
+  private static final int OVERDUE_SLOT = LEVELS * SLOTS;
+
+  private static final int NIL = -1;
+  private static final int MIN_CAPACITY = 16;
+
+  // Key -> node
+  private final LongLongHashMap nodes = new LongLongHashMap();
+
+  // Nodes, linked into the list of their slot or into the free list
+  private long[] keys = new long[MIN_CAPACITY];
+  private long[] deadlines = new long[MIN_CAPACITY];
+  private int[] next = new int[MIN_CAPACITY];
+  private int[] prev = new int[MIN_CAPACITY];
+  private int[] slotOf = new int[MIN_CAPACITY];
+  private int freeNode = NIL;
+  private int usedNodes = 0;
+
+  // First node of each slot, level by level
+  private final int[] slotHeads = new int[OVERDUE_SLOT + 1];
+
+  // Entries per level and overdue, so empty stretches of level 0 are skipped
+  private final int[] levelCounts = new int[LEVELS + 1];
+
+  // Next tick whose level 0 slot has not been drained, everything due before it has been polled
+  private long current = 0;
+
+  public TickTimingWheel() {
+    Arrays.fill(slotHeads, NIL);
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  public boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+
+  public boolean contains(long key) {
+    return nodes.containsKey(key);
+  }
+
+  /**
+   * Schedules a key, or moves it if it is already scheduled.
+   * @param key The packed position, not BlockKeys.NONE
+   * @param deadline The tick the key is due at, a tick the wheel already passed makes it due on the next poll
+   */
+  public void schedule(long key, long deadline) {
+    int node = (int) nodes.get(key, NIL);
+    if (node == NIL) {
+      node = allocate();
+      keys[node] = key;
+      nodes.put(key, node);
+    } else {
+      unlink(node);
+    }
+    deadlines[node] = deadline;
+    link(node);
+  }
+
+  /**
+   * @return true if the key was scheduled
+   */
+  public boolean cancel(long key) {
+    int node = (int) nodes.get(key, NIL);
+    if (node == NIL) {
+      return false;
+    }
+    nodes.remove(key);
+    unlink(node);
+    release(node);
+    return true;
+  }
+
+  /**
+   * Takes the next key that is due, advancing the wheel up to the given tick.
+   * Call until it returns BlockKeys.NONE. Keys may be scheduled while polling.
+   * @param now The current tick
+   * @return A key due at or before now, or BlockKeys.NONE if no key is due
+   */
+  public long poll(long now) {
+    if (slotHeads[OVERDUE_SLOT] != NIL) {
+      return take(slotHeads[OVERDUE_SLOT]);
+    }
+
+    while (current <= now) {
+      int node = slotHeads[(int) (current & SLOT_MASK)];
+      if (node != NIL) {
+        return take(node);
+      }
+
+      if (nodes.isEmpty()) {
+        // Nothing can become due on the way, jump straight to the next tick
+        current = now + 1;
+        return BlockKeys.NONE;
+      }
+
+      // Skip to the next level 0 rotation when level 0 is empty
+      if (levelCounts[0] == 0) {
+        current = Math.min(now + 1, (current | SLOT_MASK) + 1);
+      } else {
+        current++;
+      }
+      cascade();
+    }
+    return BlockKeys.NONE;
+  }
+
+  private long take(int node) {
+    long key = keys[node];
+    nodes.remove(key);
+    unlink(node);
+    release(node);
+    return key;
+  }
+
+  public void clear() {
+    nodes.clear();
+    Arrays.fill(slotHeads, NIL);
+    Arrays.fill(levelCounts, 0);
+    freeNode = NIL;
+    usedNodes = 0;
+  }
+
+  /**
+   * Moves the entries of the higher level slots the wheel just reached down a level.
+   * Higher levels go first, their entries may land in the lower level slot being moved next.
+   */
+  private void cascade() {
+    if ((current & SLOT_MASK) != 0) {
+      return;
+    }
+    int top = 1;
+    while (top < LEVELS - 1 && (current >>> (SLOT_BITS * top) & SLOT_MASK) == 0) {
+      top++;
+    }
+    for (int level = top; level >= 1; level--) {
+      int slot = level * SLOTS + (int) (current >>> (SLOT_BITS * level) & SLOT_MASK);
+      int node = slotHeads[slot];
+      slotHeads[slot] = NIL;
+      while (node != NIL) {
+        int following = next[node];
+        levelCounts[level]--;
+        link(node);
+        node = following;
+      }
+    }
+  }
+
+  /**
+   * Inserts a node into the slot for its deadline, relative to the current tick.
+   */
+  private void link(int node) {
+    long deadline = deadlines[node];
+    if (deadline < current) {
+      insert(node, OVERDUE_SLOT);
+      return;
+    }
+
+    long delay = deadline - current;
+    int level = 0;
+    while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    if (delay >= MAX_DELAY) {
+      // Beyond the wheel, park it in the top slot reached last and place it again from there
+      deadline = current + MAX_DELAY - 1;
+    }
+
+    insert(node, level * SLOTS + (int) (deadline >>> (SLOT_BITS * level) & SLOT_MASK));
+  }
+
+  private void insert(int node, int slot) {
+    int head = slotHeads[slot];
+    next[node] = head;
+    prev[node] = NIL;
+    if (head != NIL) {
+      prev[head] = node;
+    }
+    slotHeads[slot] = node;
+    slotOf[node] = slot;
+    levelCounts[slot / SLOTS]++;
+  }
+
+  private void unlink(int node) {
+    int slot = slotOf[node];
+    if (prev[node] != NIL) {
+      next[prev[node]] = next[node];
+    } else {
+      slotHeads[slot] = next[node];
+    }
+    if (next[node] != NIL) {
+      prev[next[node]] = prev[node];
+    }
+    levelCounts[slot / SLOTS]--;
+  }
+
+  private int allocate() {
+    if (freeNode != NIL) {
+      int node = freeNode;
+      freeNode = next[node];
+      return node;
+    }
+    if (usedNodes == keys.length) {
+      int capacity = keys.length * 2;
+      keys = Arrays.copyOf(keys, capacity);
+      deadlines = Arrays.copyOf(deadlines, capacity);
+      next = Arrays.copyOf(next, capacity);
+      prev = Arrays.copyOf(prev, capacity);
+      slotOf = Arrays.copyOf(slotOf, capacity);
+    }
+    return usedNodes++;
+  }
+
+  private void release(int node) {
+    next[node] = freeNode;
+    freeNode = node;
+  }
+}
@@ -0,0 +1,235 @@
+package me.formax.mod.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of ghost / not-ghost verdicts keyed by texture ID.
+ * Event maps reuse a handful of skins on thousands of heads, so a verdict is computed once and
+ * then costs a single hash lookup. The cache is saved to a compact binary file so a new session
+ * starts warm. Safe to use from several threads.
+ */
+public class VerdictCache {
+
+  // File header, "GHVC" followed by the format version
+  private static final int MAGIC = 0x47485643;
+  private static final int VERSION = 2;
+
+  private final int maxEntries;
+  private final LinkedHashMap<String, Boolean> entries;
+  private boolean dirty = false;
+
+  // Identifies the reference textures the entries were computed against, 0 while unknown
+  private long referenceSignature = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public VerdictCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    // Access order keeps the least recently used entry first, ready for eviction
+    this.entries = new LinkedHashMap<String, Boolean>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > VerdictCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up the verdict for a texture.
+   * @param textureId The texture ID (hash)
+   * @return true for a ghost texture, false for a known non-ghost, null if unknown
+   */
+  public synchronized Boolean get(String textureId) {
+    Boolean verdict = entries.get(textureId);
+    if (verdict != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    return verdict;
+  }
+
+  /**
+   * Stores the verdict for a texture, evicting the least recently used entry when full.
+   * @param textureId The texture ID (hash)
+   * @param ghost Whether the texture is a ghost texture
+   */
+  public synchronized void put(String textureId, boolean ghost) {
+    Boolean previous = entries.put(textureId, ghost);
+    if (previous == null || previous != ghost) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Records which reference textures verdicts are computed against from now on.
+   * Not-ghost verdicts computed against a different set are dropped, a new reference may match them.
+   * @param signature Identifies the current set of reference textures
+   */
+  public synchronized void setReferenceSignature(long signature) {
+    if (referenceSignature != 0 && referenceSignature != signature) {
+      entries.values().removeIf(ghost -> !ghost);
+    }
+    if (referenceSignature != signature) {
+      referenceSignature = signature;
+      dirty = true;
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized boolean isDirty() {
+    return dirty;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Loads verdicts saved by an earlier session. A missing or unreadable file leaves the cache as is.
+   * @param file The cache file
+   */
+  public void load(File file) {
+    if (!file.isFile()) {
+      return;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return;
+      }
+
+      long fileSignature = in.readLong();
+      int count = in.readInt();
+      List<String> ids = new ArrayList<>(count);
+      List<Boolean> verdicts = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        boolean ghost = in.readBoolean();
+        int length = in.readUnsignedByte();
+        byte[] packed = new byte[(length + 1) / 2];
+        in.readFully(packed);
+        ids.add(unpackHex(packed, length));
+        verdicts.add(ghost);
+      }
+
+      // Saved from least to most recently used, so inserting in order restores the LRU order
+      synchronized (this) {
+        boolean sameReferences = referenceSignature == 0 || referenceSignature == fileSignature;
+        if (referenceSignature == 0) {
+          referenceSignature = fileSignature;
+        }
+        for (int i = 0; i < count; i++) {
+          // Not-ghost verdicts against other references may be wrong now
+          if (!entries.containsKey(ids.get(i)) && (sameReferences || verdicts.get(i))) {
+            entries.put(ids.get(i), verdicts.get(i));
+          }
+        }
+      }
+    } catch (IOException e) {
+      // Corrupt or truncated file, start with whatever was read so far
+    }
+  }
+
+  /**
+   * Saves the cache if it changed since the last save.
+   * Texture IDs are stored as packed hex nibbles, so an entry takes about 34 bytes.
+   * @param file The cache file
+   * @throws IOException If the file cannot be written
+   */
+  public void save(File file) throws IOException {
+    List<Map.Entry<String, Boolean>> snapshot;
+    long signature;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      snapshot = new ArrayList<>(entries.entrySet());
+      signature = referenceSignature;
+      dirty = false;
+    }
+
+    File dir = file.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+
+    // Write to a temporary file first so a crash never leaves a half written cache behind
+    File temp = new File(file.getPath() + ".tmp");
+    List<Map.Entry<String, Boolean>> packable = new ArrayList<>(snapshot.size());
+    for (Map.Entry<String, Boolean> entry : snapshot) {
+      if (isPackable(entry.getKey())) {
+        packable.add(entry);
+      }
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(signature);
+      out.writeInt(packable.size());
+      for (Map.Entry<String, Boolean> entry : packable) {
+        String id = entry.getKey();
+        out.writeBoolean(entry.getValue());
+        out.writeByte(id.length());
+        out.write(packHex(id));
+      }
+    }
+
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not replace " + file);
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not rename " + temp);
+    }
+  }
+
+  private static boolean isPackable(String id) {
+    if (id.length() > 255) {
+      return false;
+    }
+    for (int i = 0; i < id.length(); i++) {
+      if (Character.digit(id.charAt(i), 16) < 0 || Character.isUpperCase(id.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] packHex(String id) {
+    byte[] packed = new byte[(id.length() + 1) / 2];
+    for (int i = 0; i < id.length(); i++) {
+      int nibble = Character.digit(id.charAt(i), 16);
+      packed[i >> 1] |= (i & 1) == 0 ? nibble << 4 : nibble;
+    }
+    return packed;
+  }
+
+  private static String unpackHex(byte[] packed, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      int nibble = (i & 1) == 0 ? (packed[i >> 1] >> 4) & 0xF : packed[i >> 1] & 0xF;
+      chars[i] = Character.forDigit(nibble, 16);
+    }
+    return new String(chars);
+  }
+}